@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Watches directories (recursively) with a WatchService and hands every accepted file that was
+ * created or modified to a worker pool, so outputs stay up to date while artists keep saving.
+ * <p>
+ * Editors usually write a file in several steps, each firing its own event, so a file is only
+ * converted once no event arrived for it for DEBOUNCE_MILLIS. A file is never converted twice at
+ * the same time: one that changes again while its conversion runs is queued again afterwards.
+ * New subdirectories are watched as they appear, and if the event queue overflows every accepted
+ * file is converted again.
+ */
+public class AssetWatcher {
+    public AssetWatcher(Collection<Path> roots, Predicate<Path> accept, Consumer<Path> convert, int threads) {
+        this.roots = new ArrayList<>(roots);
+        this.accept = accept;
+        this.convert = convert;
+        this.threads = threads;
+    }
+
+    /**
+     * Watch until the thread is interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "MinEdit-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            for (Path root : roots) {
+                register(watcher, root, false);
+            }
+            System.out.printf("Watching %s\n", roots);
+
+            while (true) {
+                WatchKey key;
+                if (due.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    long wait = Collections.min(due.values()) - System.nanoTime();
+                    key = watcher.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                }
+                // take everything that's queued before deciding what is due
+                while (key != null) {
+                    handle(watcher, key);
+                    key = watcher.poll();
+                }
+                submitDue(pool);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void handle(WatchService watcher, WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.out.println("Missed file events, converting everything again");
+                for (Path root : roots) {
+                    register(watcher, root, true);
+                }
+                continue;
+            }
+
+            Path p = dir.resolve((Path) event.context()).normalize();
+            if (Files.isDirectory(p)) {
+                // may already have files in it by the time it's registered
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(watcher, p, true);
+                }
+            } else if (accept.test(p)) {
+                schedule(p);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Watch dir and everything below it, with queueAll also schedule the accepted files found there
+     */
+    private void register(WatchService watcher, Path dir, boolean queueAll) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path p = file.normalize();
+                if (queueAll && attrs.isRegularFile() && accept.test(p)) {
+                    schedule(p);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void schedule(Path p) {
+        due.put(p, System.nanoTime() + DEBOUNCE_NANOS);
+    }
+
+    private void submitDue(ExecutorService pool) {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Long>> it = due.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> e = it.next();
+            if (e.getValue() > now)
+                continue;
+
+            Path p = e.getKey();
+            if (!running.add(p)) {
+                // still converting the previous version, try again after another quiet period
+                e.setValue(now + DEBOUNCE_NANOS);
+                continue;
+            }
+            it.remove();
+            pool.execute(() -> {
+                try {
+                    convert.accept(p);
+                } finally {
+                    running.remove(p);
+                }
+            });
+        }
+    }
+
+    // quiet time after the last event before a file is converted
+    static final int DEBOUNCE_MILLIS = 20;
+    private static final long DEBOUNCE_NANOS = TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+
+    private final List<Path> roots;
+    private final Predicate<Path> accept;
+    private final Consumer<Path> convert;
+    private final int threads;
+
+    // watch thread only: when each changed file is due
+    private final Map<Path, Long> due = new HashMap<>();
+    private final Set<Path> running = ConcurrentHashMap.newKeySet();
+}
@@ -0,0 +1,228 @@
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Saves documents on a background thread so the EDT never waits for encoding or disk.
+ * <p>
+ * save() runs on the EDT and only takes a snapshot (a copy-on-write copy of the two bitplanes,
+ * see TileCanvas.copy) plus the tiles dirtied since that file was last saved. The snapshot is encoded and written by a
+ * single worker thread through a per-file ExportCache, so unchanged tiles aren't re-encoded.
+ * A save requested while an earlier one for the same file is still queued replaces its
+ * snapshot instead of queueing another write. Project files take a ProjectFile holding the
+ * snapshot together with the history and editor state, and are always written whole.
+ */
+public class BackgroundSaver {
+    /**
+     * Called on the EDT
+     */
+    public interface Listener {
+        void saveStarted(File location);
+
+        /**
+         * doc is the document that was saved and version its getVersion() when the snapshot was taken,
+         * so it is saved up to there unless error isn't null
+         */
+        void saveFinished(File location, TileCanvas doc, long version, IOException error);
+    }
+
+    private static class Request {
+        Request(TileCanvas doc, TileCanvas snapshot, BitSet dirty, ProjectFile project) {
+            this.doc = doc;
+            this.version = doc.getVersion();
+            this.snapshot = snapshot;
+            this.dirty = dirty;
+            this.project = project;
+        }
+
+        TileCanvas doc;
+        long version;
+        TileCanvas snapshot;
+        final BitSet dirty;
+        // set instead of snapshot for project files
+        ProjectFile project;
+    }
+
+    public BackgroundSaver() {
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MinEdit-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Forget what was saved so far, call on the EDT when the document is replaced
+     */
+    public void reset(TileCanvas doc) {
+        tracked = doc;
+        unsaved.clear();
+        doc.clearDirty();
+        edited = false;
+    }
+
+    /**
+     * Queue a save of doc to location, call on the EDT. doc needn't be the one passed to reset(),
+     * others are written whole.
+     */
+    public void save(TileCanvas doc, File location) {
+        BitSet dirty;
+        if (doc == tracked) {
+            collectDirty(doc);
+            dirty = unsaved.put(location, new BitSet());
+        } else {
+            // the file's cache won't match the tracked document after this
+            unsaved.remove(location);
+            dirty = null;
+        }
+        if (dirty == null) {
+            // never saved there, so the cache for it has nothing yet
+            dirty = new BitSet();
+            dirty.set(0, doc.getTileCount());
+        }
+        submit(location, new Request(doc, doc.copy(), dirty, null));
+    }
+
+    /**
+     * Queue a save of project, made from a snapshot of doc, to location. Call on the EDT.
+     */
+    public void save(TileCanvas doc, ProjectFile project, File location) {
+        if (doc == tracked) {
+            collectDirty(doc);
+            unsaved.put(location, new BitSet());
+        } else {
+            unsaved.remove(location);
+        }
+        submit(location, new Request(doc, null, new BitSet(), project));
+    }
+
+    /**
+     * Whether doc changed since it was last saved to location (or since reset() for a new location)
+     */
+    public boolean hasUnsaved(TileCanvas doc, File location) {
+        collectDirty(doc);
+        BitSet dirty = unsaved.get(location);
+        return dirty == null ? edited : !dirty.isEmpty();
+    }
+
+    /**
+     * Hand the document's dirty tiles to every file saved so far
+     */
+    private void collectDirty(TileCanvas doc) {
+        BitSet dirty = doc.getDirty();
+        if (dirty.isEmpty())
+            return;
+
+        edited = true;
+        for (BitSet pending : unsaved.values()) {
+            pending.or(dirty);
+        }
+        doc.clearDirty();
+    }
+
+    private void submit(File location, Request newer) {
+        synchronized (queued) {
+            Request request = queued.get(location);
+            if (request != null) {
+                // not started yet, just make it save the newer snapshot
+                request.doc = newer.doc;
+                request.version = newer.version;
+                request.snapshot = newer.snapshot;
+                request.project = newer.project;
+                request.dirty.or(newer.dirty);
+                return;
+            }
+            queued.put(location, newer);
+        }
+        executor.execute(() -> write(location));
+    }
+
+    private void write(File location) {
+        Request request;
+        synchronized (queued) {
+            request = queued.remove(location);
+        }
+        notifyListener(location, request, null, true);
+
+        IOException error = null;
+        long start = Metrics.start();
+        try {
+            if (request.project != null) {
+                request.project.save(location);
+            } else {
+                ExportCache cache = caches.computeIfAbsent(location, f -> new ExportCache());
+                cache.update(request.snapshot, request.dirty);
+                cache.save(location);
+            }
+            Metrics.SAVE.stop(start);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e);
+        }
+        if (error != null) {
+            // the cache may be half updated, start over next time
+            caches.remove(location);
+        }
+        notifyListener(location, request, error, false);
+    }
+
+    private void notifyListener(File location, Request request, IOException error, boolean started) {
+        Listener l = listener;
+        if (l == null)
+            return;
+
+        SwingUtilities.invokeLater(() -> {
+            if (started) {
+                l.saveStarted(location);
+            } else {
+                l.saveFinished(location, request.doc, request.version, error);
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Wait up to timeoutMillis for every save queued so far to be written, false if some are still
+     * queued or running. Blocks, so don't call it on the EDT.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        // the worker runs in order, so this runs once everything before it is done
+        Future<?> done = executor.submit(() -> {
+        });
+        try {
+            done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final ExecutorService executor;
+    private volatile Listener listener;
+
+    // EDT only: the document passed to reset() and its tiles changed since each file was last saved
+    private TileCanvas tracked;
+    private final Map<File, BitSet> unsaved = new HashMap<>();
+    private boolean edited;
+
+    // queued but not started, guarded by itself
+    private final Map<File, Request> queued = new HashMap<>();
+
+    // worker thread only
+    private final Map<File, ExportCache> caches = new HashMap<>();
+}
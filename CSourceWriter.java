@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Formats tile bytes as a C array, e.g.
+ * <pre>
+ * const char name[] = {
+ * 0x00, 0x01, ...
+ * };
+ * </pre>
+ * The whole file is laid out in one pre-sized byte array using a hex lookup
+ * table and written with a single FileChannel write. With the default settings
+ * the output is what saveC has always produced: 8 bytes per line, no qualifiers.
+ */
+public class CSourceWriter {
+    public int getBytesPerLine() {
+        return bytesPerLine;
+    }
+
+    public void setBytesPerLine(int bytesPerLine) {
+        if (bytesPerLine < 1)
+            throw new IllegalArgumentException("bytesPerLine must be positive");
+        this.bytesPerLine = bytesPerLine;
+    }
+
+    public boolean isStatic() {
+        return isStatic;
+    }
+
+    /**
+     * Declare the array static
+     */
+    public void setStatic(boolean isStatic) {
+        this.isStatic = isStatic;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    /**
+     * Place the array in a linker section with __attribute__((section(...))), null for none
+     */
+    public void setSection(String section) {
+        this.section = section;
+    }
+
+    /**
+     * Exact size in bytes of the source for len data bytes
+     */
+    public int encodedLength(String name, int len) {
+        return encodedLength("char", name, len);
+    }
+
+    private int encodedLength(String type, String name, int len) {
+        int lines = (len + bytesPerLine - 1) / bytesPerLine;
+        return header(type, name).length + len * BYTE_TEXT.length + lines + FOOTER.length;
+    }
+
+    public byte[] encode(String name, byte[] data, int off, int len) {
+        return encode("char", name, data, off, len);
+    }
+
+    /**
+     * Byte array with an element type other than char, e.g. "unsigned char"
+     */
+    public byte[] encode(String type, String name, byte[] data, int off, int len) {
+        byte[] dst = new byte[encodedLength(type, name, len)];
+        encode(type, name, data, off, len, dst, 0);
+        return dst;
+    }
+
+    /**
+     * Write the source into dst at dstOff, returns the number of bytes written
+     */
+    public int encode(String name, byte[] data, int off, int len, byte[] dst, int dstOff) {
+        return encode("char", name, data, off, len, dst, dstOff);
+    }
+
+    private int encode(String type, String name, byte[] data, int off, int len, byte[] dst, int dstOff) {
+        int p = dstOff;
+
+        byte[] header = header(type, name);
+        System.arraycopy(header, 0, dst, p, header.length);
+        p += header.length;
+
+        p = encodeBytes(data, off, len, dst, p);
+
+        System.arraycopy(FOOTER, 0, dst, p, FOOTER.length);
+        p += FOOTER.length;
+        return p - dstOff;
+    }
+
+    /**
+     * Just the "0x.., " lines for data, without header and footer. Returns the offset after them.
+     */
+    int encodeBytes(byte[] data, int off, int len, byte[] dst, int p) {
+        for (int i = 0; i < len; ++i) {
+            int v = data[off + i] & 0xFF;
+            dst[p] = '0';
+            dst[p + 1] = 'x';
+            dst[p + 2] = MinEditIO.HEX_PAIRS[v * 2];
+            dst[p + 3] = MinEditIO.HEX_PAIRS[v * 2 + 1];
+            dst[p + 4] = ',';
+            dst[p + 5] = ' ';
+            p += BYTE_TEXT.length;
+
+            if (i % bytesPerLine == bytesPerLine - 1 || i == len - 1) {
+                dst[p++] = '\n';
+            }
+        }
+        return p;
+    }
+
+    /**
+     * 16 bit values as "const unsigned short name[] = {0x0000, ...}", bytesPerLine counts values here
+     */
+    public byte[] encodeShorts(String name, int[] values, int off, int len) {
+        byte[] header = header("unsigned short", name);
+        int lines = (len + bytesPerLine - 1) / bytesPerLine;
+        byte[] dst = new byte[header.length + len * 8 + lines + FOOTER.length];
+
+        System.arraycopy(header, 0, dst, 0, header.length);
+        int p = header.length;
+        for (int i = 0; i < len; ++i) {
+            int v = values[off + i];
+            dst[p] = '0';
+            dst[p + 1] = 'x';
+            dst[p + 2] = MinEditIO.HEX_PAIRS[((v >> 8) & 0xFF) * 2];
+            dst[p + 3] = MinEditIO.HEX_PAIRS[((v >> 8) & 0xFF) * 2 + 1];
+            dst[p + 4] = MinEditIO.HEX_PAIRS[(v & 0xFF) * 2];
+            dst[p + 5] = MinEditIO.HEX_PAIRS[(v & 0xFF) * 2 + 1];
+            dst[p + 6] = ',';
+            dst[p + 7] = ' ';
+            p += 8;
+
+            if (i % bytesPerLine == bytesPerLine - 1 || i == len - 1) {
+                dst[p++] = '\n';
+            }
+        }
+        System.arraycopy(FOOTER, 0, dst, p, FOOTER.length);
+        return dst;
+    }
+
+    public void write(String name, byte[] data, int off, int len, File location) throws IOException {
+        write(encode(name, data, off, len), location);
+    }
+
+    /**
+     * Write already encoded source to location with a single channel write
+     */
+    public static void write(byte[] source, File location) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(source);
+        try (FileChannel channel = FileChannel.open(location.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    byte[] header(String type, String name) {
+        StringBuilder sb = new StringBuilder();
+        if (isStatic) {
+            sb.append("static ");
+        }
+        sb.append("const ").append(type).append(' ').append(name).append("[]");
+        if (section != null) {
+            sb.append(" __attribute__((section(\"").append(section).append("\")))");
+        }
+        sb.append(" = {\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final byte[] BYTE_TEXT = "0x00, ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] FOOTER = "};\n".getBytes(StandardCharsets.US_ASCII);
+
+    private int bytesPerLine = 8;
+    private boolean isStatic;
+    private String section;
+}
@@ -0,0 +1,440 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of encoded tile data for MinEditBatch, so inputs that didn't change since the
+ * last build are neither decoded nor encoded again.
+ * <p>
+ * Entries are content addressed: the key is a 128 bit hash of the input file's bytes (read through
+ * a mapping), its length and its FileType. Each entry is a small file holding the width, height,
+ * mode and the bytes convertToMinTiles produced, everything else about the output (C or ASM, array
+ * names, tilemaps) is cheap to redo from those. The index records ENCODER_VERSION, a cache written
+ * by a build that decoded or encoded differently is emptied on open.
+ * <p>
+ * The index is an open addressing hash table in a memory-mapped file, so a lookup touches one or
+ * two slots instead of reading anything in. Every slot records when its entry was last used;
+ * once the entries add up to more than the size cap the least recently used ones are deleted.
+ * <p>
+ * Safe to share between threads. The index is locked while open, a second process using the same
+ * directory gets an IOException from open().
+ */
+public class ConversionCache implements AutoCloseable {
+    public static class Key {
+        Key(long hashA, long hashB, long length) {
+            this.hashA = hashA;
+            this.hashB = hashB;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", hashA, hashB);
+        }
+
+        final long hashA;
+        final long hashB;
+        final long length;
+    }
+
+    public static class Entry {
+        public Entry(int width, int height, DrawPanel.Mode mode, byte[] data) {
+            this.width = width;
+            this.height = height;
+            this.mode = mode;
+            this.data = data;
+        }
+
+        public final int width;
+        public final int height;
+        public final DrawPanel.Mode mode;
+        // as written by convertToMinTiles
+        public final byte[] data;
+    }
+
+    private ConversionCache(Path dir, long maxBytes, FileChannel channel, FileLock lock) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Open or create the cache in dir, holding at most maxBytes of entries
+     */
+    public static ConversionCache open(Path dir, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel channel = FileChannel.open(dir.resolve(INDEX_NAME), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // open already in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Cache " + dir + " is in use");
+        }
+
+        ConversionCache cache = new ConversionCache(dir, maxBytes, channel, lock);
+        try {
+            if (channel.size() < HEADER) {
+                cache.create(INITIAL_SLOTS);
+            } else {
+                cache.map();
+                if (cache.index.getInt(0) != MAGIC || cache.index.getInt(4) != VERSION
+                        || cache.index.getInt(ENCODER) != ENCODER_VERSION) {
+                    // old or foreign layout, or entries that may not match what we'd encode now, start over
+                    cache.clear();
+                }
+            }
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Hash file's content, the key for get() and put()
+     */
+    public static Key key(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large");
+            ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            long type = MinEditIO.resolveFileType(file.toFile()).ordinal();
+            return new Key(hash(buf, SEED_A ^ type), hash(buf, SEED_B ^ type), size);
+        }
+    }
+
+    /**
+     * Multiply-rotate hash over 8 bytes at a time, finished with a full avalanche.
+     * key() runs it with two seeds for 128 bits.
+     */
+    static long hash(ByteBuffer buf, long seed) {
+        int n = buf.limit();
+        long h = seed ^ (n * PRIME_1);
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            h = Long.rotateLeft(h ^ buf.getLong(i) * PRIME_2, 31) * PRIME_1;
+        }
+        for (; i < n; ++i) {
+            h = Long.rotateLeft(h ^ (buf.get(i) & 0xFF) * PRIME_3, 11) * PRIME_1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME_2;
+        h ^= h >>> 29;
+        h *= PRIME_3;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Cached entry for key, or null. A hit counts as a use for eviction.
+     */
+    public Entry get(Key key) throws IOException {
+        int slot;
+        synchronized (this) {
+            slot = find(key);
+            if (slot < 0)
+                return null;
+            touch(slot);
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entryPath(key));
+        } catch (IOException e) {
+            // deleted behind our back, forget it
+            remove(key);
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < ENTRY_HEADER || buf.getInt(12) != bytes.length - ENTRY_HEADER
+                || buf.getInt(8) < 0 || buf.getInt(8) >= DrawPanel.Mode.values().length) {
+            remove(key);
+            return null;
+        }
+        byte[] data = new byte[bytes.length - ENTRY_HEADER];
+        System.arraycopy(bytes, ENTRY_HEADER, data, 0, data.length);
+        return new Entry(buf.getInt(0), buf.getInt(4), DrawPanel.Mode.values()[buf.getInt(8)], data);
+    }
+
+    /**
+     * Store entry under key, then evict old entries until the cache fits its cap again
+     */
+    public void put(Key key, Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(entry.width).putInt(entry.height).putInt(entry.mode.ordinal()).putInt(entry.data.length);
+
+        // written outside the lock, only the index update is serialized
+        Path path = entryPath(key);
+        File tmp = new File(path + "." + Thread.currentThread().getId() + ".tmp");
+        ByteBuffer[] parts = {header.flip(), ByteBuffer.wrap(entry.data)};
+        long remaining = ENTRY_HEADER + entry.data.length;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                remaining -= out.write(parts);
+            }
+        }
+
+        synchronized (this) {
+            ExportCache.replace(tmp, path.toFile());
+            int size = ENTRY_HEADER + entry.data.length;
+            int slot = find(key);
+            if (slot >= 0) {
+                addTotal(size - index.getInt(slotOffset(slot) + SIZE));
+                index.putInt(slotOffset(slot) + SIZE, size);
+            } else {
+                slot = insert(key, size);
+            }
+            touch(slot);
+            evict();
+        }
+    }
+
+    private synchronized void remove(Key key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            delete(slot);
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return index.getInt(USED);
+    }
+
+    /**
+     * Sum of the entry file sizes
+     */
+    public synchronized long getTotalBytes() {
+        return index.getLong(TOTAL);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.force();
+        }
+        lock.release();
+        channel.close();
+    }
+
+    private Path entryPath(Key key) {
+        return dir.resolve(key + ".tiles");
+    }
+
+    private int slotCount() {
+        return index.getInt(SLOTS);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    /**
+     * Slot holding key, or -1. Linear probing, deleted slots don't end the search.
+     */
+    private int find(Key key) {
+        int mask = slotCount() - 1;
+        for (int i = (int) key.hashA & mask; ; i = (i + 1) & mask) {
+            int off = slotOffset(i);
+            int state = index.getInt(off + STATE);
+            if (state == SLOT_EMPTY)
+                return -1;
+            if (state == SLOT_FULL && index.getLong(off + HASH_A) == key.hashA
+                    && index.getLong(off + HASH_B) == key.hashB && index.getLong(off + LENGTH) == key.length)
+                return i;
+        }
+    }
+
+    private int insert(Key key, int size) throws IOException {
+        // keep at least half the slots empty so probes stay short, deleted ones count as taken
+        if ((index.getInt(USED) + index.getInt(DELETED) + 1) * 2 > slotCount()) {
+            rehash(index.getInt(USED) * 2 + 2 > slotCount() ? slotCount() * 2 : slotCount());
+        }
+
+        int mask = slotCount() - 1;
+        int i = (int) key.hashA & mask;
+        while (index.getInt(slotOffset(i) + STATE) == SLOT_FULL) {
+            i = (i + 1) & mask;
+        }
+        int off = slotOffset(i);
+        if (index.getInt(off + STATE) == SLOT_DELETED) {
+            index.putInt(DELETED, index.getInt(DELETED) - 1);
+        }
+        index.putLong(off + HASH_A, key.hashA);
+        index.putLong(off + HASH_B, key.hashB);
+        index.putLong(off + LENGTH, key.length);
+        index.putInt(off + SIZE, size);
+        index.putInt(off + STATE, SLOT_FULL);
+        index.putInt(USED, index.getInt(USED) + 1);
+        addTotal(size);
+        return i;
+    }
+
+    private void touch(int slot) {
+        long tick = index.getLong(TICK) + 1;
+        index.putLong(TICK, tick);
+        index.putLong(slotOffset(slot) + LAST_USED, tick);
+    }
+
+    private void delete(int slot) {
+        int off = slotOffset(slot);
+        Key key = new Key(index.getLong(off + HASH_A), index.getLong(off + HASH_B), index.getLong(off + LENGTH));
+        try {
+            Files.deleteIfExists(entryPath(key));
+        } catch (IOException e) {
+            // left behind until the cache is cleared, the index forgets it either way
+            Metrics.CACHE_DELETE_FAILURES.increment();
+        }
+        addTotal(-index.getInt(off + SIZE));
+        index.putInt(off + STATE, SLOT_DELETED);
+        index.putInt(USED, index.getInt(USED) - 1);
+        index.putInt(DELETED, index.getInt(DELETED) + 1);
+    }
+
+    /**
+     * Delete least recently used entries until the total is under the cap
+     */
+    private void evict() {
+        if (index.getLong(TOTAL) <= maxBytes)
+            return;
+
+        // one pass over the table, then oldest first
+        List<Integer> full = new ArrayList<>(index.getInt(USED));
+        for (int i = 0; i < slotCount(); ++i) {
+            if (index.getInt(slotOffset(i) + STATE) == SLOT_FULL) {
+                full.add(i);
+            }
+        }
+        full.sort(Comparator.comparingLong(slot -> index.getLong(slotOffset(slot) + LAST_USED)));
+
+        for (int i = 0; i < full.size() && index.getLong(TOTAL) > maxBytes; ++i) {
+            delete(full.get(i));
+        }
+    }
+
+    private void addTotal(long delta) {
+        index.putLong(TOTAL, index.getLong(TOTAL) + delta);
+    }
+
+    /**
+     * Move every live slot into a table of the given size, dropping deleted ones
+     */
+    private void rehash(int slots) throws IOException {
+        ByteBuffer old = ByteBuffer.allocate(slotCount() * SLOT).order(ByteOrder.LITTLE_ENDIAN);
+        old.put(index.slice(HEADER, slotCount() * SLOT));
+        int oldSlots = slotCount();
+        long tick = index.getLong(TICK);
+
+        create(slots);
+        index.putLong(TICK, tick);
+        int mask = slots - 1;
+        for (int s = 0; s < oldSlots; ++s) {
+            int from = s * SLOT;
+            if (old.getInt(from + STATE) != SLOT_FULL)
+                continue;
+
+            int i = (int) old.getLong(from + HASH_A) & mask;
+            while (index.getInt(slotOffset(i) + STATE) == SLOT_FULL) {
+                i = (i + 1) & mask;
+            }
+            index.put(slotOffset(i), old, from, SLOT);
+            index.putInt(USED, index.getInt(USED) + 1);
+            addTotal(old.getInt(from + SIZE));
+        }
+    }
+
+    /**
+     * Start from an empty index and delete the entries
+     */
+    private void clear() throws IOException {
+        try (var files = Files.newDirectoryStream(dir, "*.tiles")) {
+            for (Path p : files) {
+                Files.delete(p);
+            }
+        }
+        create(INITIAL_SLOTS);
+    }
+
+    private void create(int slots) throws IOException {
+        // grows the file if needed, it never shrinks
+        int size = HEADER + slots * SLOT;
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < size; i += 8) {
+            index.putLong(i, 0);
+        }
+        index.putInt(0, MAGIC);
+        index.putInt(4, VERSION);
+        index.putInt(SLOTS, slots);
+        index.putInt(ENCODER, ENCODER_VERSION);
+    }
+
+    private void map() throws IOException {
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        index.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // index header: magic, version, slot count, used, deleted, encoder version, total bytes, tick
+    private static final int MAGIC = 0x4D454343;
+    private static final int VERSION = 1;
+    private static final int SLOTS = 8;
+    private static final int USED = 12;
+    private static final int DELETED = 16;
+    private static final int ENCODER = 20;
+    private static final int TOTAL = 24;
+    private static final int TICK = 32;
+    private static final int HEADER = 40;
+
+    // slot: hash a, hash b, input length, last use tick, entry size, state
+    private static final int HASH_A = 0;
+    private static final int HASH_B = 8;
+    private static final int LENGTH = 16;
+    private static final int LAST_USED = 24;
+    private static final int SIZE = 32;
+    private static final int STATE = 36;
+    private static final int SLOT = 40;
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_FULL = 1;
+    private static final int SLOT_DELETED = 2;
+
+    // bump whenever MinEditIO.open or convertToMinTiles change their output for the same input.
+    // 2: palette PNGs no longer decode as all white
+    private static final int ENCODER_VERSION = 2;
+
+    private static final int INITIAL_SLOTS = 1024;
+    // width, height, mode, data length
+    private static final int ENTRY_HEADER = 16;
+    private static final String INDEX_NAME = "index";
+
+    private static final long SEED_A = 0x243F6A8885A308D3L;
+    private static final long SEED_B = 0x13198A2E03707344L;
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private MappedByteBuffer index;
+}
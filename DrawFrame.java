@@ -4,6 +4,10 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Contains drawing panel and menu bar
@@ -14,6 +18,17 @@ public class DrawFrame extends JFrame {
     public DrawMenuBar menuBar;
     public DrawPanel canvas;
 
+    // shown while background saves are running
+    private final JProgressBar saveProgress = new JProgressBar();
+    private int savesRunning;
+    // saves the user was told about that failed, see whenSaved()
+    private int failedSaves;
+
+    // open project, if any, and its sheets down the left side
+    private Workspace workspace;
+    private final JList<Workspace.Sheet> sheetList = new JList<>();
+    private final JScrollPane sheetPane = new JScrollPane(sheetList);
+
     class DrawKeyListener implements KeyListener {
         @Override
         public void keyTyped(KeyEvent e) {
@@ -32,10 +47,10 @@ public class DrawFrame extends JFrame {
                 }
             } else {
                 switch (e.getKeyCode()) {
-                    case KeyEvent.VK_UP -> canvas.setLocation(canvas.getX(), canvas.getY() + 25);
-                    case KeyEvent.VK_DOWN -> canvas.setLocation(canvas.getX(), canvas.getY() - 25);
-                    case KeyEvent.VK_LEFT -> canvas.setLocation(canvas.getX() + 25, canvas.getY());
-                    case KeyEvent.VK_RIGHT -> canvas.setLocation(canvas.getX() - 25, canvas.getY());
+                    case KeyEvent.VK_UP -> canvas.panBy(0, -PAN_STEP);
+                    case KeyEvent.VK_DOWN -> canvas.panBy(0, PAN_STEP);
+                    case KeyEvent.VK_LEFT -> canvas.panBy(-PAN_STEP, 0);
+                    case KeyEvent.VK_RIGHT -> canvas.panBy(PAN_STEP, 0);
                     case KeyEvent.VK_EQUALS -> canvas.multiScale(2.0f);
                     case KeyEvent.VK_MINUS -> canvas.multiScale(0.5f);
                     case KeyEvent.VK_G -> canvas.toggleGraph();
@@ -43,6 +58,10 @@ public class DrawFrame extends JFrame {
                     case KeyEvent.VK_M -> MinEdit.setTool(MinEdit.Tool.MASK);
                     case KeyEvent.VK_P -> MinEdit.setTool(MinEdit.Tool.PENCIL);
                     case KeyEvent.VK_E -> MinEdit.setTool(MinEdit.Tool.ERASER);
+                    case KeyEvent.VK_F -> MinEdit.setTool(MinEdit.Tool.FILL);
+                    case KeyEvent.VK_OPEN_BRACKET -> canvas.setBrushSize(canvas.getBrushSize() - 1);
+                    case KeyEvent.VK_CLOSE_BRACKET -> canvas.setBrushSize(canvas.getBrushSize() + 1);
+                    case KeyEvent.VK_F12 -> toggleMetrics();
                 }
             }
         }
@@ -52,6 +71,34 @@ public class DrawFrame extends JFrame {
         }
     }
 
+    class SaveListener implements BackgroundSaver.Listener {
+        @Override
+        public void saveStarted(File location) {
+            savesRunning++;
+            saveProgress.setString("Saving " + location.getName());
+            saveProgress.setVisible(true);
+        }
+
+        @Override
+        public void saveFinished(File location, TileCanvas doc, long version, IOException error) {
+            if (--savesRunning == 0) {
+                saveProgress.setVisible(false);
+            }
+            if (error == null) {
+                // only now, a sheet that counts as saved may be evicted
+                if (workspace != null) {
+                    workspace.markSaved(doc, location, version);
+                }
+                return;
+            }
+
+            if (!location.equals(DrawPanel.AUTOSAVE_FILE)) {
+                failedSaves++;
+                JOptionPane.showMessageDialog(DrawFrame.this, "Error saving file.");
+            }
+        }
+    }
+
     public DrawFrame(String title) {
         JPanel panel = new JPanel();
         panel.setLayout(new BorderLayout());
@@ -62,7 +109,36 @@ public class DrawFrame extends JFrame {
         setJMenuBar(menuBar);
 
         canvas = new DrawPanel();
-        panel.add(canvas);
+        JScrollPane canvasPane = new JScrollPane(canvas);
+        canvasPane.getHorizontalScrollBar().setUnitIncrement(PAN_STEP);
+        canvasPane.getVerticalScrollBar().setUnitIncrement(PAN_STEP);
+        canvasPane.setFocusable(false);
+        panel.add(canvasPane);
+
+        saveProgress.setIndeterminate(true);
+        saveProgress.setStringPainted(true);
+        saveProgress.setVisible(false);
+        panel.add(saveProgress, BorderLayout.SOUTH);
+        canvas.getSaver().setListener(new SaveListener());
+
+        sheetList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        sheetList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && sheetList.getSelectedValue() != null) {
+                showSheet(sheetList.getSelectedValue());
+            }
+        });
+        sheetList.setFocusable(false);
+        sheetPane.setVisible(false);
+        panel.add(sheetPane, BorderLayout.WEST);
+
+        new Timer(AUTOSAVE_INTERVAL, e -> canvas.autosave()).start();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // let queued saves finish before the JVM exits
+                closeWorkspace("Exit", () -> System.exit(0));
+            }
+        });
 
         setContentPane(panel);
 
@@ -70,6 +146,153 @@ public class DrawFrame extends JFrame {
         setSize((int) (32 + DrawPanel.DEFAULT_SIZE * DrawPanel.DEFAULT_SCALE), (int) (64 + DrawPanel.DEFAULT_SIZE * DrawPanel.DEFAULT_SCALE));
         setBackground(Color.lightGray);
         setLocationRelativeTo(null);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // closed by whenSaved() once the saves are written
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+    }
+
+    /**
+     * Run next on the EDT once every save queued so far is written, waiting on a worker thread.
+     * If one of them fails next isn't run, and if they take long the user is asked whether to go
+     * on without them.
+     */
+    public void whenSaved(String title, Runnable next) {
+        whenSaved(title, next, failedSaves);
+    }
+
+    private void whenSaved(String title, Runnable next, int failedBefore) {
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws InterruptedException {
+                return canvas.getSaver().flush(SAVE_WAIT);
+            }
+
+            @Override
+            protected void done() {
+                boolean saved;
+                try {
+                    saved = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    saved = false;
+                }
+                if (failedSaves != failedBefore) {
+                    JOptionPane.showMessageDialog(DrawFrame.this, "Some files could not be saved, nothing was closed.",
+                            title, JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                if (!saved) {
+                    int choice = JOptionPane.showConfirmDialog(DrawFrame.this,
+                            "Files are still being saved. Wait for them? Otherwise they may be lost.",
+                            title, JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                    if (choice != JOptionPane.NO_OPTION) {
+                        whenSaved(title, next, failedBefore);
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }.execute();
+    }
+
+    /**
+     * List the project's sheets, nothing is decoded until one is selected
+     */
+    public void openProject(Workspace workspace) {
+        this.workspace = workspace;
+        sheetList.setListData(workspace.getSheets().toArray(new Workspace.Sheet[0]));
+        sheetPane.setVisible(true);
+        revalidate();
+        requestFocus();
+    }
+
+    public Workspace getWorkspace() {
+        return workspace;
     }
+
+    /**
+     * Offer to save or discard the project's modified sheets, then run next like whenSaved().
+     * Nothing happens if the user cancels.
+     */
+    public void closeWorkspace(String title, Runnable next) {
+        List<Workspace.Sheet> modified = workspace == null ? List.of() : workspace.getModified();
+        if (!modified.isEmpty()) {
+            StringBuilder names = new StringBuilder();
+            for (Workspace.Sheet sheet : modified) {
+                names.append(sheet.getFile().getName()).append('\n');
+            }
+            JTextArea list = new JTextArea(names.toString().trim(), Math.min(modified.size(), 10), 40);
+            list.setEditable(false);
+            int choice = JOptionPane.showOptionDialog(this, new Object[]{
+                            String.format("%d sheets have unsaved changes:", modified.size()), new JScrollPane(list)},
+                    title, JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE, null,
+                    new String[]{"Save", "Discard", "Cancel"}, "Save");
+            if (choice == 0) {
+                for (Workspace.Sheet sheet : modified) {
+                    canvas.save(workspace.get(sheet), workspace.getHistory(sheet), sheet.getFile());
+                }
+            } else if (choice != 1) {
+                return;
+            }
+        }
+        whenSaved(title, next);
+    }
+
+    /**
+     * Switch the canvas to sheet, right away if it is still in memory, otherwise once it is decoded in the background
+     */
+    public void showSheet(Workspace.Sheet sheet) {
+        if (workspace.get(sheet) != null) {
+            activateSheet(sheet);
+            return;
+        }
+
+        new SwingWorker<TileCanvas, Void>() {
+            @Override
+            protected TileCanvas doInBackground() throws IOException {
+                return Workspace.decode(sheet);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    workspace.put(sheet, get());
+                } catch (InterruptedException | ExecutionException e) {
+                    JOptionPane.showMessageDialog(DrawFrame.this, "Error opening file.");
+                    return;
+                }
+                // the user may have moved on while it was loading
+                if (sheetList.getSelectedValue() == sheet) {
+                    activateSheet(sheet);
+                }
+                sheetList.repaint();
+            }
+        }.execute();
+    }
+
+    private void activateSheet(Workspace.Sheet sheet) {
+        workspace.setActive(sheet);
+        canvas.setDocument(workspace.get(sheet), workspace.getHistory(sheet));
+        setTitle("MinEdit - " + sheet.getFile().getName());
+        requestFocus();
+    }
+
+    /**
+     * Start collecting metrics, or stop and print what was collected
+     */
+    private void toggleMetrics() {
+        if (Metrics.isEnabled()) {
+            Metrics.setEnabled(false);
+            Metrics.report(System.out);
+        } else {
+            Metrics.reset();
+            Metrics.setEnabled(true);
+        }
+    }
+
+    private static final int AUTOSAVE_INTERVAL = 30 * 1000;
+
+    // how long whenSaved() waits before asking
+    private static final long SAVE_WAIT = 5 * 1000;
+
+    // screen pixels per arrow key press or scroll bar click
+    private static final int PAN_STEP = 25;
 }
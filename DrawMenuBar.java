@@ -3,10 +3,17 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 public class DrawMenuBar extends JMenuBar {
     DrawFrame parent;
 
+    // made on first use, building a chooser takes a while, then kept so they remember the directory
+    private JFileChooser fileChooser;
+    private JFileChooser directoryChooser;
+
     DrawMenuBar(DrawFrame parent) {
         this.parent = parent;
         JMenu file = new JMenu("File");
@@ -17,12 +24,35 @@ public class DrawMenuBar extends JMenuBar {
         MenuItem_FileOpen fileOpen = new MenuItem_FileOpen();
         file.add(fileOpen);
 
+        MenuItem_FileOpenProject fileOpenProject = new MenuItem_FileOpenProject();
+        file.add(fileOpenProject);
+
         MenuItem_FileSave fileSave = new MenuItem_FileSave();
         file.add(fileSave);
 
         add(file);
     }
 
+    private JFileChooser getFileChooser() {
+        if (fileChooser == null) {
+            fileChooser = new JFileChooser();
+            fileChooser.addChoosableFileFilter(new MinEditIO.PNGSaveFilter());
+            fileChooser.addChoosableFileFilter(new MinEditIO.ASMSaveFilter());
+            fileChooser.addChoosableFileFilter(new MinEditIO.CSaveFilter());
+            fileChooser.addChoosableFileFilter(new MinEditIO.ProjectFilter());
+        }
+        return fileChooser;
+    }
+
+    private JFileChooser getDirectoryChooser() {
+        if (directoryChooser == null) {
+            directoryChooser = new JFileChooser();
+            directoryChooser.setDialogTitle("Open asset directory");
+            directoryChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        }
+        return directoryChooser;
+    }
+
     // File -> New
     private class MenuItem_FileNew extends JMenuItem {
         MenuItem_FileNew() {
@@ -70,16 +100,23 @@ public class DrawMenuBar extends JMenuBar {
         private class MyListener implements ActionListener {
             @Override
             public void actionPerformed(ActionEvent e) {
-                JFileChooser fileChooser = new JFileChooser();
+                JFileChooser fileChooser = getFileChooser();
 
                 fileChooser.setDialogTitle("Open file");
-                fileChooser.addChoosableFileFilter(new MinEditIO.PNGSaveFilter());
-                fileChooser.addChoosableFileFilter(new MinEditIO.ASMSaveFilter());
-                fileChooser.addChoosableFileFilter(new MinEditIO.CSaveFilter());
 
                 int result = fileChooser.showOpenDialog(parent.getParent());
 
                 if (result == JFileChooser.APPROVE_OPTION) {
+                    if (MinEditIO.resolveFileType(fileChooser.getSelectedFile()) == MinEditIO.FileType.PROJECT) {
+                        // mapped and shown right away, with the history and tool it was saved with
+                        try {
+                            parent.canvas.open(MinEditIO.openProject(fileChooser.getSelectedFile()));
+                        } catch (IOException ex) {
+                            JOptionPane.showMessageDialog(parent, "Error opening file.");
+                        }
+                        return;
+                    }
+
                     BufferedImage img = null;
                     try {
                         img = MinEditIO.open(fileChooser.getSelectedFile());
@@ -87,7 +124,6 @@ public class DrawMenuBar extends JMenuBar {
                         JOptionPane.showMessageDialog(parent, "Error opening file.");
                     } finally {
                         if (img != null) {
-                            parent.canvas.allocImage(1, 1, img.getType() == BufferedImage.TYPE_BYTE_BINARY ? DrawPanel.Mode.TILE : DrawPanel.Mode.SPRITE);
                             parent.canvas.setImage(img);
                         } else {
                             JOptionPane.showMessageDialog(parent, "Invalid file.");
@@ -98,6 +134,48 @@ public class DrawMenuBar extends JMenuBar {
         }
     }
 
+    // File -> Open project
+    private class MenuItem_FileOpenProject extends JMenuItem {
+        MenuItem_FileOpenProject() {
+            setText("Open project");
+            addActionListener(new MyListener());
+        }
+
+        private class MyListener implements ActionListener {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fileChooser = getDirectoryChooser();
+
+                int result = fileChooser.showOpenDialog(parent.getParent());
+
+                if (result == JFileChooser.APPROVE_OPTION) {
+                    // the open project's modified sheets are saved or discarded first
+                    parent.closeWorkspace("Open project", () -> open(fileChooser.getSelectedFile()));
+                }
+            }
+
+            private void open(File dir) {
+                try {
+                    Workspace workspace = Workspace.open(dir);
+                    parent.openProject(workspace);
+                    if (!workspace.getSkipped().isEmpty()) {
+                        showSkipped(workspace.getSkipped());
+                    }
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(parent, "Error opening project.");
+                }
+            }
+
+            private void showSkipped(List<String> skipped) {
+                JTextArea list = new JTextArea(String.join("\n", skipped), Math.min(skipped.size(), 10), 50);
+                list.setEditable(false);
+                JOptionPane.showMessageDialog(parent, new Object[]{
+                        String.format("%d files could not be read and were left out:", skipped.size()),
+                        new JScrollPane(list)}, "Open project", JOptionPane.WARNING_MESSAGE);
+            }
+        }
+    }
+
     // File -> Save
     private class MenuItem_FileSave extends JMenuItem {
         MenuItem_FileSave() {
@@ -108,21 +186,15 @@ public class DrawMenuBar extends JMenuBar {
         private class MyListener implements ActionListener {
             @Override
             public void actionPerformed(ActionEvent e) {
-                JFileChooser fileChooser = new JFileChooser();
+                JFileChooser fileChooser = getFileChooser();
 
                 fileChooser.setDialogTitle("Choose save location");
-                fileChooser.addChoosableFileFilter(new MinEditIO.PNGSaveFilter());
-                fileChooser.addChoosableFileFilter(new MinEditIO.ASMSaveFilter());
-                fileChooser.addChoosableFileFilter(new MinEditIO.CSaveFilter());
 
                 int result = fileChooser.showSaveDialog(parent.getParent());
 
                 if (result == JFileChooser.APPROVE_OPTION) {
-                    try {
-                        MinEditIO.save(parent.canvas.getImage(), fileChooser.getSelectedFile());
-                    } catch (Exception ex) {
-                        JOptionPane.showMessageDialog(parent, "Error saving file.");
-                    }
+                    // errors are reported by DrawFrame once the background save is done
+                    parent.canvas.save(fileChooser.getSelectedFile());
                 }
             }
         }
@@ -3,23 +3,35 @@ import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Stack;
-import java.util.stream.StreamSupport;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
 
 /**
- * Pixel drawing canvas
+ * Pixel drawing canvas. The pixels live in a TileCanvas, which is painted directly: each paint
+ * renders only the tiles under the clip into a small reused view buffer and scales that up, so
+ * frame time depends on the window size and not on the canvas size. Meant to sit in a JScrollPane,
+ * its preferred size is the scaled canvas.
+ * <p>
+ * Drags are drawn as lines between consecutive mouse positions with a square brush.
+ * Pixels only go into the document right away, the tiles they touched are collected
+ * in one dirty rectangle that is repainted once per frame. Dragging with the middle button
+ * pans, Ctrl + wheel zooms around the cursor.
  */
 public class DrawPanel extends JPanel {
     DrawPanel() {
-        undoHistory = new Stack<>();
+        saver = new BackgroundSaver();
         allocImage(DEFAULT_SIZE, DEFAULT_SIZE, DEFAULT_MODE);
         scale = DEFAULT_SCALE;
 
         addMouseMotionListener(new DrawMouseMotion());
         addMouseListener(new DrawMouse());
+        addMouseWheelListener(this::handleWheel);
+
+        repaintTimer = new Timer(FRAME_MILLIS, e -> flushRepaint());
+        repaintTimer.setRepeats(false);
     }
 
     public enum Mode {TILE, SPRITE}
@@ -28,13 +40,29 @@ public class DrawPanel extends JPanel {
         @Override
         public void mousePressed(MouseEvent e) {
             super.mousePressed(e);
-            insertHistory();
+            if (SwingUtilities.isMiddleMouseButton(e)) {
+                panFrom = e.getLocationOnScreen();
+                return;
+            }
+            if (MinEdit.getTool() == MinEdit.Tool.FILL) {
+                floodFill(toImageX(e), toImageY(e), TileCanvas.BLACK);
+                return;
+            }
+            beginEdit();
+            strokeX = toImageX(e);
+            strokeY = toImageY(e);
             handleDraw(e);
         }
 
         @Override
         public void mouseReleased(MouseEvent e) {
             super.mouseReleased(e);
+            if (panFrom != null) {
+                panFrom = null;
+                return;
+            }
+            endEdit();
+            flushRepaint();
         }
     }
 
@@ -42,58 +70,388 @@ public class DrawPanel extends JPanel {
         @Override
         public void mouseDragged(MouseEvent e) {
             super.mouseDragged(e);
-            handleDraw(e);
+            if (panFrom != null) {
+                // on screen, the panel moves under the cursor
+                Point p = e.getLocationOnScreen();
+                panBy(panFrom.x - p.x, panFrom.y - p.y);
+                panFrom = p;
+                return;
+            }
+            if (MinEdit.getTool() != MinEdit.Tool.FILL) {
+                handleDraw(e);
+            }
         }
     }
 
     @Override
     public void paintComponent(Graphics g) {
+        long start = Metrics.start();
         super.paintComponent(g);
-        int scaledX = (int) (workingImg.getWidth() * scale);
-        int scaledY = (int) (workingImg.getHeight() * scale);
+        Rectangle bounds = new Rectangle(getScaledSize());
 
-        g.drawImage(workingImg.getScaledInstance(scaledX, scaledY, Image.SCALE_REPLICATE), 0, 0, this);
+        // only the part of the image under the clip is rendered
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = bounds;
+        }
+        clip = clip.intersection(bounds);
+        if (clip.isEmpty())
+            return;
 
-        if (showGraph) {
-            g.setColor(Color.gray);
-            for (int x = 0; x < scaledX; x += scale * 8) {
-                g.drawLine(x, 0, x, scaledY);
+        Graphics2D g2d = (Graphics2D) g;
+        if (scale >= 1) {
+            paintTiles(g2d, clip);
+        } else {
+            paintSampled(g2d, clip);
+        }
+
+        // zoomed out far enough the grid would hide the pixels
+        if (showGraph && scale * 8 >= MIN_GRID_STEP) {
+            Paint grid = getGridPaint();
+            if (grid != null) {
+                g2d.setPaint(grid);
+                g2d.fill(clip);
+            } else {
+                g.setColor(Color.gray);
+                float step = scale * 8;
+                for (float x = (int) (clip.x / step) * step; x < clip.x + clip.width; x += step) {
+                    g.drawLine((int) x, clip.y, (int) x, clip.y + clip.height);
+                }
+                for (float y = (int) (clip.y / step) * step; y < clip.y + clip.height; y += step) {
+                    g.drawLine(clip.x, (int) y, clip.x + clip.width, (int) y);
+                }
             }
-            for (int y = 0; y < scaledY; y += scale * 8) {
-                g.drawLine(0, y, scaledX, y);
+        }
+
+        Metrics.PAINT.stop(start);
+        Metrics.STROKE.stop(syncedStart);
+        syncedStart = 0;
+        if (!painted) {
+            painted = true;
+            MinEdit.firstPaint();
+        }
+    }
+
+    /**
+     * Render the tiles under clip into the view buffer and draw them scaled up without filtering
+     */
+    private void paintTiles(Graphics2D g2d, Rectangle clip) {
+        int x1 = (int) (clip.x / scale) & ~7;
+        int y1 = (int) (clip.y / scale) & ~7;
+        int x2 = Math.min(document.getWidth(), ((int) Math.ceil((clip.x + clip.width) / scale) + 7) & ~7);
+        int y2 = Math.min(document.getHeight(), ((int) Math.ceil((clip.y + clip.height) / scale) + 7) & ~7);
+        Rectangle area = new Rectangle(x1, y1, x2 - x1, y2 - y1);
+
+        BufferedImage view = getViewBuffer(area.width, area.height);
+        document.render(view, area, x1, y1);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2d.drawImage(view, (int) (x1 * scale), (int) (y1 * scale), (int) (x2 * scale), (int) (y2 * scale),
+                0, 0, area.width, area.height, null);
+    }
+
+    /**
+     * Zoomed out several pixels share a screen pixel, so only one of them is looked up for each
+     */
+    private void paintSampled(Graphics2D g2d, Rectangle clip) {
+        BufferedImage view = getViewBuffer(clip.width, clip.height);
+        int[] raw = ((DataBufferInt) view.getRaster().getDataBuffer()).getData();
+        int stride = view.getWidth();
+        for (int y = 0; y < clip.height; ++y) {
+            int py = Math.min(document.getHeight() - 1, (int) ((clip.y + y) / scale));
+            for (int x = 0; x < clip.width; ++x) {
+                int px = Math.min(document.getWidth() - 1, (int) ((clip.x + x) / scale));
+                raw[y * stride + x] = TileCanvas.toRGB(document.get(px, py));
             }
         }
+        g2d.drawImage(view, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                0, 0, clip.width, clip.height, null);
+    }
+
+    /**
+     * Scratch image of at least width x height, only grows, so scrolling doesn't allocate.
+     * TYPE_INT_RGB for both modes, scaling a TYPE_BYTE_BINARY image makes Java2D convert it first.
+     */
+    private BufferedImage getViewBuffer(int width, int height) {
+        if (viewBuffer == null || viewBuffer.getWidth() < width || viewBuffer.getHeight() < height) {
+            int w = Math.max(width, viewBuffer == null ? 0 : viewBuffer.getWidth());
+            int h = Math.max(height, viewBuffer == null ? 0 : viewBuffer.getHeight());
+            viewBuffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        }
+        return viewBuffer;
+    }
+
+    /**
+     * Grid overlay as a repeating one-tile texture, rebuilt when the scale changes.
+     * Returns null if a tile isn't a whole number of screen pixels.
+     */
+    private Paint getGridPaint() {
+        float step = scale * 8;
+        if (step < 2 || step != (int) step)
+            return null;
+
+        if (gridPaint == null) {
+            int size = (int) step;
+            BufferedImage cell = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2d = cell.createGraphics();
+            g2d.setColor(Color.gray);
+            g2d.drawLine(0, 0, size - 1, 0);
+            g2d.drawLine(0, 0, 0, size - 1);
+            g2d.dispose();
+            gridPaint = new TexturePaint(cell, new Rectangle(0, 0, size, size));
+        }
+        return gridPaint;
+    }
+
+    private Dimension getScaledSize() {
+        return new Dimension((int) Math.ceil(document.getWidth() * scale), (int) Math.ceil(document.getHeight() * scale));
     }
 
+    @Override
+    public Dimension getPreferredSize() {
+        return getScaledSize();
+    }
+
+    /**
+     * Schedule a repaint of the image area x, y, w, h (in image pixels)
+     */
+    public void repaintImage(int x, int y, int w, int h) {
+        int x1 = (int) (x * scale);
+        int y1 = (int) (y * scale);
+        int x2 = (int) Math.ceil((x + w) * scale);
+        int y2 = (int) Math.ceil((y + h) * scale);
+        repaint(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * Reset every pixel to the mode's background, as a single undo step
+     */
     public void clear() {
-        allocImage(workingImg.getWidth(), workingImg.getHeight(), getMode());
+        TileCanvas before = document.copy();
+        int background = mode == Mode.SPRITE ? TileCanvas.TRANS : TileCanvas.WHITE;
+
+        document.fill(background);
+        history.push(doc -> doc.copyFrom(before), doc -> doc.fill(background), before.bytes(), getBounds(document));
+        Metrics.HISTORY_BYTES.set(history.getMemoryUsage());
+        syncView(getBounds(document));
     }
 
     public void drawPixel(int x, int y, int rgb) {
-        workingImg.setRGB(x, y, rgb);
-        repaint();
+        plot(x, y, TileCanvas.fromRGB(rgb));
+        markDirty(x, y, x, y);
+    }
+
+    /**
+     * Draw a line from x0, y0 to x1, y1 (Bresenham) with the current brush, pixels outside the canvas are skipped
+     */
+    public void drawLine(int x0, int y0, int x1, int y1, int value) {
+        int dx = Math.abs(x1 - x0);
+        int dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+
+        int x = x0;
+        int y = y0;
+        while (true) {
+            stamp(x, y, value);
+            if (x == x1 && y == y1)
+                break;
+
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y += sy;
+            }
+        }
+
+        int off = (brushSize - 1) / 2;
+        markDirty(Math.min(x0, x1) - off, Math.min(y0, y1) - off,
+                Math.max(x0, x1) - off + brushSize - 1, Math.max(y0, y1) - off + brushSize - 1);
+    }
+
+    /**
+     * brushSize x brushSize square centered on x, y
+     */
+    private void stamp(int x, int y, int value) {
+        int off = (brushSize - 1) / 2;
+        int x1 = Math.max(0, x - off);
+        int y1 = Math.max(0, y - off);
+        int x2 = Math.min(document.getWidth(), x - off + brushSize);
+        int y2 = Math.min(document.getHeight(), y - off + brushSize);
+        for (int py = y1; py < y2; ++py) {
+            for (int px = x1; px < x2; ++px) {
+                plot(px, py, value);
+            }
+        }
+    }
+
+    private void plot(int x, int y, int value) {
+        history.touch(document.tileIndex(x, y));
+        document.set(x, y, value);
+    }
+
+    /**
+     * Fill the area around x, y that has the same color as it, as a single undo step.
+     * Undo keeps only the tiles the fill changed.
+     */
+    public void floodFill(int x, int y, int value) {
+        if (x < 0 || y < 0 || x >= document.getWidth() || y >= document.getHeight())
+            return;
+
+        beginEdit();
+        Rectangle area = document.floodFill(x, y, value, history::touch);
+        endEdit();
+        if (area != null) {
+            markDirty(area.x, area.y, area.x + area.width - 1, area.y + area.height - 1);
+        }
+    }
+
+    /**
+     * Add the tiles under the pixel rectangle x1, y1 - x2, y2 to the next frame's repaint
+     */
+    private void markDirty(int x1, int y1, int x2, int y2) {
+        if (drawnStart == 0) {
+            drawnStart = Metrics.start();
+        }
+        dirtyX1 = Math.min(dirtyX1, Math.max(0, x1));
+        dirtyY1 = Math.min(dirtyY1, Math.max(0, y1));
+        dirtyX2 = Math.max(dirtyX2, Math.min(document.getWidth() - 1, x2));
+        dirtyY2 = Math.max(dirtyY2, Math.min(document.getHeight() - 1, y2));
+        if (!repaintTimer.isRunning()) {
+            repaintTimer.start();
+        }
+    }
+
+    /**
+     * Repaint everything drawn since the last frame
+     */
+    private void flushRepaint() {
+        repaintTimer.stop();
+        if (dirtyX2 < dirtyX1 || dirtyY2 < dirtyY1)
+            return;
+
+        Rectangle area = new Rectangle(dirtyX1 & ~7, dirtyY1 & ~7,
+                (dirtyX2 | 7) + 1 - (dirtyX1 & ~7), (dirtyY2 | 7) + 1 - (dirtyY1 & ~7));
+        clearDirty();
+        syncView(area);
+        // the next paint shows it
+        if (syncedStart == 0) {
+            syncedStart = drawnStart;
+        }
+        drawnStart = 0;
+    }
+
+    private void clearDirty() {
+        dirtyX1 = Integer.MAX_VALUE;
+        dirtyY1 = Integer.MAX_VALUE;
+        dirtyX2 = -1;
+        dirtyY2 = -1;
+    }
+
+    public int getBrushSize() {
+        return brushSize;
+    }
+
+    public void setBrushSize(int brushSize) {
+        this.brushSize = Math.max(1, Math.min(MAX_BRUSH_SIZE, brushSize));
     }
 
     public void erasePixel(int x, int y) {
-        workingImg.setRGB(x, y, RGB_WHITE);
-        repaint();
+        drawPixel(x, y, RGB_WHITE);
     }
 
+    /**
+     * New image of the document, TYPE_BYTE_BINARY for TILE and TYPE_INT_RGB for SPRITE mode
+     */
     public BufferedImage getImage() {
-        return workingImg;
+        return document.toImage();
     }
 
     public void setImage(BufferedImage image) {
-        workingImg = image;
+        setDocument(TileCanvas.fromImage(image));
+    }
+
+    public TileCanvas getDocument() {
+        return document;
+    }
+
+    /**
+     * Edit document with a fresh history
+     */
+    public void setDocument(TileCanvas document) {
+        setDocument(document, new EditHistory(DEFAULT_HISTORY_BUDGET));
+    }
+
+    /**
+     * Edit document, undoing into history, which is kept as it is so switching back to a document
+     * doesn't lose its undo steps
+     */
+    public void setDocument(TileCanvas document, EditHistory history) {
+        if (this.history != null) {
+            this.history.end();
+        }
+        this.history = history;
+        this.document = document;
+        this.mode = document.getMode();
+        clearDirty();
+        saver.reset(document);
+        revalidate();
         repaint();
     }
 
+    /**
+     * Save the document in the background, see BackgroundSaver. Project files also keep the
+     * history, tool, brush size and zoom.
+     */
+    public void save(File location) {
+        save(document, history, location);
+    }
+
+    /**
+     * Save doc, which needn't be the one being edited, like save(). Project files get this panel's
+     * tool, brush size and zoom.
+     */
+    public void save(TileCanvas doc, EditHistory history, File location) {
+        if (MinEditIO.resolveFileType(location) == MinEditIO.FileType.PROJECT) {
+            saver.save(doc, new ProjectFile(doc.copy(), history.snapshot(), MinEdit.getTool(), brushSize, scale), location);
+        } else {
+            saver.save(doc, location);
+        }
+    }
+
+    /**
+     * Edit a project's canvas with the history, tool, brush size and zoom it was saved with
+     */
+    public void open(ProjectFile project) throws IOException {
+        setDocument(project.getDocument(), project.getHistory(DEFAULT_HISTORY_BUDGET));
+        MinEdit.setTool(project.getTool());
+        setBrushSize(project.getBrushSize());
+        setScale(project.getScale());
+    }
+
+    /**
+     * Save to AUTOSAVE_FILE if anything changed since the last autosave
+     */
+    public void autosave() {
+        if (saver.hasUnsaved(document, AUTOSAVE_FILE)) {
+            saver.save(document, AUTOSAVE_FILE);
+        }
+    }
+
+    public BackgroundSaver getSaver() {
+        return saver;
+    }
+
     public int getTilesX() {
-        return workingImg.getWidth() / 8;
+        return document.getTilesX();
     }
 
     public int getTilesY() {
-        return workingImg.getHeight() / 8;
+        return document.getTilesY();
     }
 
     public void setShowGraph(boolean showGraph) {
@@ -111,72 +469,137 @@ public class DrawPanel extends JPanel {
     }
 
     public void setScale(float scale) {
-        this.scale = scale;
+        this.scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        gridPaint = null;
+        revalidate();
         repaint();
     }
 
+    /**
+     * Zoom around the middle of the visible part
+     */
     public void multiScale(float multiplier) {
-        scale *= multiplier;
-        repaint();
+        Rectangle visible = getVisibleRect();
+        zoom(multiplier, new Point(visible.x + visible.width / 2, visible.y + visible.height / 2));
+    }
+
+    /**
+     * Scale by multiplier, keeping the image pixel under anchor (in panel coordinates) where it is on screen
+     */
+    public void zoom(float multiplier, Point anchor) {
+        float old = scale;
+        setScale(scale * multiplier);
+        JViewport viewport = getViewport();
+        if (viewport == null || scale == old)
+            return;
+
+        Point view = viewport.getViewPosition();
+        float factor = scale / old;
+        // resize right away, the viewport only scrolls within the current size
+        viewport.setViewSize(getScaledSize());
+        scrollTo(viewport, (int) (anchor.x * factor) - (anchor.x - view.x), (int) (anchor.y * factor) - (anchor.y - view.y));
+    }
+
+    /**
+     * Scroll the view by dx, dy screen pixels
+     */
+    public void panBy(int dx, int dy) {
+        JViewport viewport = getViewport();
+        if (viewport == null)
+            return;
+
+        Point view = viewport.getViewPosition();
+        scrollTo(viewport, view.x + dx, view.y + dy);
+    }
+
+    private void scrollTo(JViewport viewport, int x, int y) {
+        Dimension extent = viewport.getExtentSize();
+        Dimension size = getScaledSize();
+        x = Math.max(0, Math.min(x, size.width - extent.width));
+        y = Math.max(0, Math.min(y, size.height - extent.height));
+        viewport.setViewPosition(new Point(x, y));
+    }
+
+    private JViewport getViewport() {
+        return getParent() instanceof JViewport viewport ? viewport : null;
+    }
+
+    /**
+     * Ctrl + wheel zooms by factors of 2 per notch, everything else goes to the scroll pane
+     */
+    private void handleWheel(MouseWheelEvent e) {
+        if (e.isControlDown()) {
+            // touchpads send fractions of a notch, pixels would come out unevenly sized in between
+            wheelZoom += e.getPreciseWheelRotation();
+            if (Math.abs(wheelZoom) >= 1) {
+                zoom(wheelZoom < 0 ? 2.0f : 0.5f, e.getPoint());
+                wheelZoom = 0;
+            }
+            return;
+        }
+        Container scrollPane = SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+        if (scrollPane != null) {
+            scrollPane.dispatchEvent(SwingUtilities.convertMouseEvent(this, e, scrollPane));
+        }
     }
 
     public Mode getMode() {
         return mode;
     }
 
+    /**
+     * New blank document, sizes are rounded up to whole tiles
+     */
     public void allocImage(int width, int height, Mode mode) {
-        resetHistory();
-        System.out.printf("Alloc new image: 0x%x x 0x%x\n", width, height);
-        if (mode == Mode.SPRITE) {
-            workingImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            for (int x = 0; x < width; ++x) {
-                for (int y = 0; y < height; ++y) {
-                    drawPixel(x, y, RGB_TRANS);
-                }
-            }
-        } else {
-            workingImg = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
-            for (int x = 0; x < width; ++x) {
-                for (int y = 0; y < height; ++y) {
-                    drawPixel(x, y, RGB_WHITE);
-                }
-            }
-        }
-        repaint();
+        Metrics.NEW_DOCUMENTS.increment();
+        setDocument(new TileCanvas(width, height, mode));
     }
 
+    /**
+     * Continue the stroke from the previous mouse position to this one
+     */
     private void handleDraw(MouseEvent e) {
-        int roundX = (int) (e.getX() / scale);
-        int roundY = (int) (e.getY() / scale);
-
-        // check under
-        if (roundX < 0 || roundY < 0)
-            return;
+        int x = toImageX(e);
+        int y = toImageY(e);
+
+        int value = switch (MinEdit.getTool()) {
+            case ERASER -> TileCanvas.WHITE;
+            case MASK -> TileCanvas.TRANS;
+            default -> TileCanvas.BLACK;
+        };
+        drawLine(strokeX, strokeY, x, y, value);
+        strokeX = x;
+        strokeY = y;
+    }
 
-        // check over
-        if (roundX >= workingImg.getWidth() || roundY >= workingImg.getHeight())
-            return;
+    private int toImageX(MouseEvent e) {
+        return (int) Math.floor(e.getX() / scale);
+    }
 
-        switch (MinEdit.getTool()) {
-            case PENCIL -> drawPixel(roundX, roundY, RGB_BLACK);
-            case ERASER -> erasePixel(roundX, roundY);
-            case MASK -> drawPixel(roundX, roundY, RGB_TRANS);
-        }
+    private int toImageY(MouseEvent e) {
+        return (int) Math.floor(e.getY() / scale);
     }
 
+    /**
+     * Swap black and white over the whole image, as a single undo step
+     */
     public void invert() {
-        insertHistory();
-        for (int x = 0; x < workingImg.getWidth(); ++x) {
-            for (int y = 0; y < workingImg.getHeight(); ++y) {
-                int px = workingImg.getData().getPixel(x, y, (int[]) null)[0];
-                switch (px) {
-                    case 0 -> drawPixel(x, y, RGB_WHITE);
-                    case 1, RGB_WHITE -> drawPixel(x, y, RGB_BLACK);
-                    case RGB_TRANS -> getScale();
-                    default -> System.out.printf("Unhandled color: 0x%x\n", px);
-                }
-            }
-        }
+        document.invert();
+        // inverting is its own inverse, so the history entry needs no pixel data
+        history.push(TileCanvas::invert, TileCanvas::invert, 0, getBounds(document));
+        Metrics.HISTORY_BYTES.set(history.getMemoryUsage());
+        syncView(getBounds(document));
+    }
+
+    private static Rectangle getBounds(TileCanvas doc) {
+        return new Rectangle(0, 0, doc.getWidth(), doc.getHeight());
+    }
+
+    /**
+     * Repaint area (in image pixels), paintComponent renders it from the document
+     */
+    private void syncView(Rectangle area) {
+        repaintImage(area.x, area.y, area.width, area.height);
     }
 
     public static BufferedImage clone(BufferedImage image) {
@@ -189,84 +612,94 @@ public class DrawPanel extends JPanel {
     }
 
     public void resetHistory() {
-        undoHistory.clear();
-        historyIdx = 0;
+        history.clear();
     }
 
-    private void deleteRedo() {
-        if (undoHistory.size() <= 0)
-            return;
-
-        if (undoHistory.size() > historyIdx) {
-            undoHistory.subList(historyIdx, undoHistory.size()).clear();
-        }
+    public EditHistory getHistory() {
+        return history;
     }
 
-    public void debugHistory() {
-        System.out.println("[ ]".repeat(undoHistory.size()));
-        System.out.println(" ^ ".repeat(historyIdx) + "\tidx = " + historyIdx);
+    /**
+     * Start a new undo step, pixels changed until endEdit() are undone together
+     */
+    public void beginEdit() {
+        history.begin(document);
     }
 
-    public void insertHistory() {
-        System.out.println("Inserting history.");
-
-        deleteRedo();
-        undoHistory.push(clone(workingImg));
-
-        if (undoHistory.size() >= MAX_HISTORY) {
-            undoHistory.remove(0);
-            System.out.println("History full, popping oldest.");
-        } else {
-            historyIdx++;
-        }
-
-        debugHistory();
+    public void endEdit() {
+        history.end();
+        Metrics.HISTORY_BYTES.set(history.getMemoryUsage());
     }
 
     public void undo() {
-        if (historyIdx <= 0)
+        Rectangle dirty = history.undo(document);
+        if (dirty == null)
             return;
 
-        if (historyIdx == undoHistory.size()) {
-            undoHistory.push(workingImg);
-        }
-
-        System.out.println("Undo.");
-        historyIdx--;
-        workingImg = undoHistory.get(historyIdx);
-        repaint();
-
-        debugHistory();
+        Metrics.UNDOS.increment();
+        syncView(dirty);
     }
 
     public void redo() {
-        if (historyIdx >= undoHistory.size() - 1)
+        Rectangle dirty = history.redo(document);
+        if (dirty == null)
             return;
 
-        System.out.println("Redo.");
-        historyIdx++;
-        workingImg = undoHistory.get(historyIdx);
-        repaint();
-
-        debugHistory();
+        Metrics.REDOS.increment();
+        syncView(dirty);
     }
 
     public static final int DEFAULT_SIZE = 16;
     public static final float DEFAULT_SCALE = 32.0f;
+    public static final float MIN_SCALE = 1 / 16.0f;
+    public static final float MAX_SCALE = 128.0f;
     public static final Mode DEFAULT_MODE = Mode.SPRITE;
 
-    private static final int RGB_BLACK = 0x000000;
     private static final int RGB_WHITE = 0xFFFFFF;
-    private static final int RGB_TRANS = 0x800080;
 
-    private static final int MAX_HISTORY = 10;
+    // screen pixels between grid lines
+    private static final float MIN_GRID_STEP = 4;
+
+    public static final int MAX_BRUSH_SIZE = 16;
+
+    // one repaint per frame at 60 Hz
+    private static final int FRAME_MILLIS = 16;
+
+    private static final long DEFAULT_HISTORY_BUDGET = 16 * 1024 * 1024;
+
+    // ASM keeps the size and mode, so the sheet can be opened again as it was
+    public static final File AUTOSAVE_FILE = new File(System.getProperty("user.home"), ".minedit-autosave.asm");
 
-    private int historyIdx = -1;
-    private final Stack<BufferedImage> undoHistory;
+    private EditHistory history;
+    private final BackgroundSaver saver;
 
     private Mode mode;
 
-    private BufferedImage workingImg;
+    private TileCanvas document;
     private float scale;
     private boolean showGraph;
+    private Paint gridPaint;
+
+    // reused by paintComponent for the visible tiles
+    private BufferedImage viewBuffer;
+    private boolean painted;
+
+    // last screen position of a middle button drag, null unless panning
+    private Point panFrom;
+    private double wheelZoom;
+
+    private int brushSize = 1;
+    private int strokeX;
+    private int strokeY;
+
+    // pixels drawn but not yet copied to the view, inclusive
+    private final Timer repaintTimer;
+    private int dirtyX1 = Integer.MAX_VALUE;
+    private int dirtyY1 = Integer.MAX_VALUE;
+    private int dirtyX2 = -1;
+    private int dirtyY2 = -1;
+
+    // Metrics.start() of the oldest pixels not yet copied to the view, and of those copied but not painted yet
+    private long drawnStart;
+    private long syncedStart;
 }
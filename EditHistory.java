@@ -0,0 +1,493 @@
+import java.awt.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Undo/redo history that only keeps the 8x8 tiles changed by each edit.
+ * <p>
+ * An edit is opened with begin(), every tile about to be written is passed to
+ * touch() until end(). The first touch saves the tile's two bitplanes, end() adds
+ * their new values, all in packed primitive arrays (36 bytes per tile). Undo and
+ * redo put those tiles back, so they cost O(changed tiles) regardless of canvas
+ * size. The open edit keeps the tiles it already saved in a set of its own, so recording one
+ * doesn't cost anything per canvas tile either. Once the history uses more memory than its
+ * budget the oldest edits are dropped.
+ * <p>
+ * Tile edits can be written to a project file with snapshot() and read back with read(),
+ * whole-canvas operations only exist as callbacks and end what is stored.
+ */
+public class EditHistory {
+    abstract static class Edit {
+        abstract void undo(TileCanvas doc);
+
+        abstract void redo(TileCanvas doc);
+
+        abstract long bytes();
+
+        abstract Rectangle bounds();
+    }
+
+    static class TileEdit extends Edit {
+        /**
+         * Save tile t of doc unless it already was, only while the edit is open
+         */
+        void touch(int t, TileCanvas doc) {
+            if (size * 2 >= seen.length) {
+                rehash(seen.length * 2);
+            }
+            int mask = seen.length - 1;
+            int i = hash(t) & mask;
+            while (seen[i] != 0) {
+                if (seen[i] == t + 1)
+                    return;
+                i = (i + 1) & mask;
+            }
+            seen[i] = t + 1;
+            add(t, doc.getInk(t), doc.getMask(t));
+        }
+
+        private void rehash(int capacity) {
+            int[] old = seen;
+            seen = new int[capacity];
+            for (int v : old) {
+                if (v == 0)
+                    continue;
+                int i = hash(v - 1) & (capacity - 1);
+                while (seen[i] != 0) {
+                    i = (i + 1) & (capacity - 1);
+                }
+                seen[i] = v;
+            }
+        }
+
+        private static int hash(int t) {
+            int h = t * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        void add(int t, long ink, long mask) {
+            if (size == tiles.length) {
+                tiles = Arrays.copyOf(tiles, size * 2);
+                before = Arrays.copyOf(before, size * 4);
+            }
+            tiles[size] = t;
+            before[size * 2] = ink;
+            before[size * 2 + 1] = mask;
+            size++;
+        }
+
+        /**
+         * Read the new values of the touched tiles, drop the ones that ended up unchanged and work out the bounds
+         */
+        void finish(TileCanvas doc) {
+            seen = null;
+            long[] after = new long[size * 2];
+            int n = 0;
+
+            for (int i = 0; i < size; ++i) {
+                int t = tiles[i];
+                long ink = doc.getInk(t);
+                long mask = doc.getMask(t);
+                if (ink == before[i * 2] && mask == before[i * 2 + 1])
+                    continue;
+
+                tiles[n] = t;
+                before[n * 2] = before[i * 2];
+                before[n * 2 + 1] = before[i * 2 + 1];
+                after[n * 2] = ink;
+                after[n * 2 + 1] = mask;
+                n++;
+            }
+
+            size = n;
+            tiles = Arrays.copyOf(tiles, n);
+            before = Arrays.copyOf(before, n * 2);
+            this.after = Arrays.copyOf(after, n * 2);
+            findBounds(doc.getTilesX());
+        }
+
+        private void findBounds(int tilesX) {
+            if (size == 0)
+                return;
+
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+            for (int i = 0; i < size; ++i) {
+                int tx = tiles[i] % tilesX;
+                int ty = tiles[i] / tilesX;
+                minX = Math.min(minX, tx);
+                minY = Math.min(minY, ty);
+                maxX = Math.max(maxX, tx);
+                maxY = Math.max(maxY, ty);
+            }
+            bounds = new Rectangle(minX * 8, minY * 8, (maxX - minX + 1) * 8, (maxY - minY + 1) * 8);
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < size; ++i) {
+                out.writeInt(tiles[i]);
+            }
+            for (int i = 0; i < size * 2; ++i) {
+                out.writeLong(before[i]);
+            }
+            for (int i = 0; i < size * 2; ++i) {
+                out.writeLong(after[i]);
+            }
+        }
+
+        /**
+         * Tile count at the start of an edit written by write(), read() or skip() the rest
+         */
+        static int readSize(DataInput in, TileCanvas doc) throws IOException {
+            int size = in.readInt();
+            if (size <= 0 || size > doc.getTileCount())
+                throw new IOException("Invalid edit of " + size + " tiles");
+            return size;
+        }
+
+        static TileEdit read(DataInput in, TileCanvas doc, int size) throws IOException {
+            TileEdit edit = new TileEdit();
+            edit.size = size;
+            // grown as the tiles arrive, so a corrupt size runs into the end of the input before
+            // much is allocated. The planes are only allocated once all tiles were there.
+            edit.tiles = new int[Math.min(size, 1024)];
+            for (int i = 0; i < size; ++i) {
+                int t = in.readInt();
+                if (t < 0 || t >= doc.getTileCount())
+                    throw new IOException("Invalid tile " + t);
+                if (i == edit.tiles.length) {
+                    edit.tiles = Arrays.copyOf(edit.tiles, (int) Math.min(size, i * 2L));
+                }
+                edit.tiles[i] = t;
+            }
+            edit.before = new long[size * 2];
+            edit.after = new long[size * 2];
+            for (int i = 0; i < size * 2; ++i) {
+                edit.before[i] = in.readLong();
+            }
+            for (int i = 0; i < size * 2; ++i) {
+                edit.after[i] = in.readLong();
+            }
+            edit.findBounds(doc.getTilesX());
+            return edit;
+        }
+
+        static void skip(DataInput in, int size) throws IOException {
+            long left = size * 36L;
+            while (left > 0) {
+                int n = in.skipBytes((int) Math.min(left, 1 << 16));
+                if (n == 0) {
+                    // skipBytes doesn't tell the end of the input apart, this throws there
+                    in.readByte();
+                    n = 1;
+                }
+                left -= n;
+            }
+        }
+
+        /**
+         * bytes() of an edit of size tiles once it's finished or read
+         */
+        static long bytes(int size) {
+            return 64 + 36L * size;
+        }
+
+        @Override
+        void undo(TileCanvas doc) {
+            for (int i = 0; i < size; ++i) {
+                doc.setTile(tiles[i], before[i * 2], before[i * 2 + 1]);
+            }
+        }
+
+        @Override
+        void redo(TileCanvas doc) {
+            for (int i = 0; i < size; ++i) {
+                doc.setTile(tiles[i], after[i * 2], after[i * 2 + 1]);
+            }
+        }
+
+        @Override
+        long bytes() {
+            return 64 + 4L * tiles.length + 8L * before.length + 8L * after.length
+                    + (seen == null ? 0 : 4L * seen.length);
+        }
+
+        @Override
+        Rectangle bounds() {
+            return bounds;
+        }
+
+        int[] tiles = new int[16];
+        // ink, mask pairs
+        long[] before = new long[32];
+        long[] after = new long[0];
+        int size;
+        Rectangle bounds;
+        // open addressing set of the tiles saved so far, t + 1 with 0 for empty slots.
+        // Only there until finish(), so it grows with the edit rather than the canvas.
+        int[] seen = new int[32];
+    }
+
+    /**
+     * Whole-canvas operation undone and redone by callbacks instead of stored tiles
+     */
+    static class OperationEdit extends Edit {
+        OperationEdit(Consumer<TileCanvas> undo, Consumer<TileCanvas> redo, long bytes, Rectangle bounds) {
+            this.undo = undo;
+            this.redo = redo;
+            this.bytes = bytes;
+            this.bounds = bounds;
+        }
+
+        @Override
+        void undo(TileCanvas doc) {
+            undo.accept(doc);
+        }
+
+        @Override
+        void redo(TileCanvas doc) {
+            redo.accept(doc);
+        }
+
+        @Override
+        long bytes() {
+            return 64 + bytes;
+        }
+
+        @Override
+        Rectangle bounds() {
+            return bounds;
+        }
+
+        final Consumer<TileCanvas> undo;
+        final Consumer<TileCanvas> redo;
+        final long bytes;
+        final Rectangle bounds;
+    }
+
+    /**
+     * The storable part of a history, taken on the EDT and written from any thread. Pushed edits
+     * never change, so it only holds on to them.
+     */
+    public static class Snapshot {
+        Snapshot(List<TileEdit> undo, List<TileEdit> redo) {
+            this.undo = undo;
+            this.redo = redo;
+        }
+
+        public boolean isEmpty() {
+            return undo.isEmpty() && redo.isEmpty();
+        }
+
+        /**
+         * Undo then redo steps, newest first, as read() expects them
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(undo.size());
+            for (TileEdit edit : undo) {
+                edit.write(out);
+            }
+            out.writeInt(redo.size());
+            for (TileEdit edit : redo) {
+                edit.write(out);
+            }
+        }
+
+        private final List<TileEdit> undo;
+        private final List<TileEdit> redo;
+    }
+
+    public EditHistory(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Undo and redo steps of doc written by Snapshot.write. Both come newest first, and from the
+     * first step that doesn't fit the budget on the rest of that stack is skipped without being
+     * allocated, except that the newest undo step is always kept, like setBudget does.
+     */
+    public static EditHistory read(DataInput in, TileCanvas doc, long budget) throws IOException {
+        EditHistory history = new EditHistory(budget);
+        for (ArrayDeque<Edit> stack : List.of(history.undoStack, history.redoStack)) {
+            int count = in.readInt();
+            if (count < 0)
+                throw new IOException("Invalid history");
+
+            boolean full = false;
+            for (int i = 0; i < count; ++i) {
+                int size = TileEdit.readSize(in, doc);
+                long bytes = TileEdit.bytes(size);
+                boolean required = stack == history.undoStack && stack.isEmpty();
+                full |= !required && history.memory + bytes > budget;
+                if (full) {
+                    TileEdit.skip(in, size);
+                    continue;
+                }
+                stack.addLast(TileEdit.read(in, doc, size));
+                history.memory += bytes;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Tile edits on both stacks up to the first whole-canvas operation, the edit still open isn't included
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(storable(undoStack), storable(redoStack));
+    }
+
+    private static List<TileEdit> storable(ArrayDeque<Edit> stack) {
+        List<TileEdit> edits = new ArrayList<>();
+        for (Edit edit : stack) {
+            if (!(edit instanceof TileEdit tileEdit))
+                break;
+            edits.add(tileEdit);
+        }
+        return edits;
+    }
+
+    /**
+     * Start recording a new edit of doc, closing the current one
+     */
+    public void begin(TileCanvas doc) {
+        end();
+        recording = doc;
+        current = new TileEdit();
+    }
+
+    public boolean isRecording() {
+        return current != null;
+    }
+
+    /**
+     * Call before writing to tile t, saves it the first time it is touched in the current edit.
+     * Ignored unless an edit is open.
+     */
+    public void touch(int t) {
+        if (current == null)
+            return;
+
+        current.touch(t, recording);
+    }
+
+    /**
+     * Close the current edit and push it, edits that didn't change anything are dropped
+     */
+    public void end() {
+        if (current == null)
+            return;
+
+        TileEdit edit = current;
+        current = null;
+        edit.finish(recording);
+        recording = null;
+        if (edit.size == 0)
+            return;
+
+        push(edit);
+    }
+
+    /**
+     * Push an already applied operation as a single edit. bytes is what the callbacks keep alive,
+     * bounds the area they change.
+     */
+    public void push(Consumer<TileCanvas> undo, Consumer<TileCanvas> redo, long bytes, Rectangle bounds) {
+        end();
+        push(new OperationEdit(undo, redo, bytes, bounds));
+    }
+
+    private void push(Edit edit) {
+        clearRedo();
+        undoStack.push(edit);
+        memory += edit.bytes();
+
+        // always keep the newest edit, even if it alone is over budget
+        while (memory > budget && undoStack.size() > 1) {
+            memory -= undoStack.removeLast().bytes();
+        }
+    }
+
+    /**
+     * Revert the newest edit, returns the area that changed or null if there was nothing to undo
+     */
+    public Rectangle undo(TileCanvas doc) {
+        end();
+        if (undoStack.isEmpty())
+            return null;
+
+        Edit edit = undoStack.pop();
+        edit.undo(doc);
+        redoStack.push(edit);
+        return edit.bounds();
+    }
+
+    /**
+     * Reapply the last undone edit, returns the area that changed or null if there was nothing to redo
+     */
+    public Rectangle redo(TileCanvas doc) {
+        end();
+        if (redoStack.isEmpty())
+            return null;
+
+        Edit edit = redoStack.pop();
+        edit.redo(doc);
+        undoStack.push(edit);
+        return edit.bounds();
+    }
+
+    public void clear() {
+        current = null;
+        recording = null;
+        undoStack.clear();
+        redoStack.clear();
+        memory = 0;
+    }
+
+    private void clearRedo() {
+        for (Edit edit : redoStack) {
+            memory -= edit.bytes();
+        }
+        redoStack.clear();
+    }
+
+    public int getUndoCount() {
+        return undoStack.size();
+    }
+
+    public int getRedoCount() {
+        return redoStack.size();
+    }
+
+    /**
+     * Approximate bytes held by undo and redo edits and the edit still open
+     */
+    public long getMemoryUsage() {
+        return memory + (current == null ? 0 : current.bytes());
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+        while (memory > budget && undoStack.size() > 1) {
+            memory -= undoStack.removeLast().bytes();
+        }
+    }
+
+    private final ArrayDeque<Edit> undoStack = new ArrayDeque<>();
+    private final ArrayDeque<Edit> redoStack = new ArrayDeque<>();
+    private TileEdit current;
+    private TileCanvas recording;
+
+    private long budget;
+    private long memory;
+}
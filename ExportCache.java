@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Keeps the last exported bytes and C/ASM text of a document so a save only
+ * re-encodes the tiles written since the previous one.
+ * <p>
+ * Both formats put every 8 encoded bytes on one fixed-width line (tiles and sprite
+ * planes are 8 byte aligned), so line i of the body always belongs to bytes 8i..8i+7
+ * and a dirty tile maps to one line (two for sprites). The file is then written as
+ * header + cached body + footer. Output is identical to MinEditIO.saveC/saveASM.
+ * <p>
+ * Files are written to a temporary sibling first and renamed over the target, so a
+ * crash mid-save never leaves a truncated file behind.
+ */
+public class ExportCache {
+    /**
+     * Take over the tiles in dirty from doc, usually a snapshot. The first update, or one where the
+     * size or mode changed, re-encodes everything.
+     */
+    public void update(TileCanvas doc, BitSet dirty) {
+        if (doc.getMode() == DrawPanel.Mode.SPRITE && doc.getTileCount() % 4 != 0)
+            throw new IllegalArgumentException("Sprite sheets must be made of whole 16x16 sprites");
+
+        if (this.doc == null || this.doc.getMode() != doc.getMode() || encoded.length != doc.encodedSize()) {
+            encoded = new byte[doc.encodedSize()];
+            int lines = encoded.length / 8;
+            cBody = new byte[lines * C_LINE];
+            asmBody = new byte[lines * MinEditIO.DB_LINE.length];
+            dirty = new BitSet();
+            dirty.set(0, doc.getTileCount());
+        }
+        this.doc = doc;
+
+        lastUpdated = dirty.cardinality();
+        for (int t = dirty.nextSetBit(0); t >= 0; t = dirty.nextSetBit(t + 1)) {
+            doc.encodeTile(t, encoded, 0);
+            if (doc.getMode() == DrawPanel.Mode.TILE) {
+                markStale(t);
+            } else {
+                // mask line, the graphic is two lines further
+                int line = MinEditIO.spriteSlot(t) / 8;
+                markStale(line);
+                markStale(line + 2);
+            }
+        }
+    }
+
+    /**
+     * Document given to the last update()
+     */
+    public TileCanvas getDocument() {
+        return doc;
+    }
+
+    /**
+     * Save as C, ASM, PNG or a project without history depending on the extension, see MinEditIO.resolveFileType
+     */
+    public void save(File location) throws IOException {
+        switch (MinEditIO.resolveFileType(location)) {
+            case PNG -> {
+                File tmp = tempFile(location);
+                MinEditIO.savePNG(doc.toImage(), tmp);
+                replace(tmp, location);
+            }
+            case C -> saveC(location);
+            case ASM -> saveASM(location);
+            case PROJECT -> new ProjectFile(doc).save(location);
+        }
+    }
+
+    public void saveC(File location) throws IOException {
+        formatStale(cStale, cBody, C_LINE, true);
+        byte[] header = MinEditIO.cHeader(C_FORMAT, doc.getWidth(), doc.getHeight(), doc.getMode(), location);
+        write(location, header, cBody, CSourceWriter.FOOTER);
+    }
+
+    public void saveASM(File location) throws IOException {
+        formatStale(asmStale, asmBody, MinEditIO.DB_LINE.length, false);
+        byte[] header = MinEditIO.asmHeader(doc.getWidth(), doc.getHeight(), doc.getMode(), location);
+        write(location, header, asmBody, new byte[0]);
+    }
+
+    /**
+     * Number of tiles re-encoded by the last update
+     */
+    public int getLastUpdated() {
+        return lastUpdated;
+    }
+
+    private void markStale(int line) {
+        cStale.set(line);
+        asmStale.set(line);
+    }
+
+    private void formatStale(BitSet stale, byte[] body, int lineLength, boolean c) {
+        for (int i = stale.nextSetBit(0); i >= 0; i = stale.nextSetBit(i + 1)) {
+            if (c) {
+                C_FORMAT.encodeBytes(encoded, i * 8, 8, body, i * lineLength);
+            } else {
+                MinEditIO.formatDb(encoded, i * 8, body, i * lineLength);
+            }
+        }
+        stale.clear();
+    }
+
+    private static void write(File location, byte[] header, byte[] body, byte[] footer) throws IOException {
+        ByteBuffer[] parts = {ByteBuffer.wrap(header), ByteBuffer.wrap(body), ByteBuffer.wrap(footer)};
+        long remaining = header.length + body.length + footer.length;
+
+        File tmp = tempFile(location);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                remaining -= channel.write(parts);
+            }
+        }
+        replace(tmp, location);
+    }
+
+    static File tempFile(File location) {
+        return new File(location.getAbsoluteFile().getParentFile(), location.getName() + ".tmp");
+    }
+
+    /**
+     * Rename tmp over location, atomically where the file system allows it
+     */
+    static void replace(File tmp, File location) throws IOException {
+        try {
+            Files.move(tmp.toPath(), location.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), location.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // "0x00, " * 8 + '\n' with the default CSourceWriter
+    private static final int C_LINE = 8 * 6 + 1;
+    private static final CSourceWriter C_FORMAT = new CSourceWriter();
+
+    private TileCanvas doc;
+    private byte[] encoded;
+    private byte[] cBody;
+    private byte[] asmBody;
+    private final BitSet cStale = new BitSet();
+    private final BitSet asmStale = new BitSet();
+    private int lastUpdated;
+}
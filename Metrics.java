@@ -0,0 +1,357 @@
+import jdk.jfr.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for profiling editing sessions and batch runs, each
+ * sample also committed as a JFR event.
+ * <p>
+ * Off by default. -Dminedit.metrics=true turns it on from the start and prints a report at exit,
+ * setEnabled() toggles it at runtime. Once it was enabled it is also on while a flight recording
+ * runs, even after being disabled again. JFR is only touched from the first time metrics are
+ * enabled, so while off nothing of it is loaded and no thread is started. Timed code calls start()
+ * and hands the result to Timer.stop(): while off start() is a single volatile read returning 0,
+ * which stop() ignores, and counters and gauges return after the same read.
+ * <p>
+ * Histograms keep 8 buckets per power of two nanoseconds, so percentiles are within 12.5%.
+ * Everything is safe to use from any thread.
+ */
+public final class Metrics {
+    private Metrics() {
+    }
+
+    /**
+     * Latency histogram, fed from start() / stop()
+     */
+    public static final class Timer {
+        Timer(String name) {
+            this.name = name;
+            all.add(this);
+        }
+
+        /**
+         * Record the time since start, which came from Metrics.start()
+         */
+        public void stop(long start) {
+            if (start == 0)
+                return;
+            add(Math.max(0, System.nanoTime() - start));
+        }
+
+        /**
+         * Record a duration the caller measured itself
+         */
+        public void record(long nanos) {
+            if (active) {
+                add(nanos);
+            }
+        }
+
+        private void add(long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+            total.add(nanos);
+            max.accumulate(nanos);
+
+            TimingEvent event = new TimingEvent();
+            if (event.isEnabled()) {
+                event.metric = name;
+                event.elapsed = nanos;
+                event.commit();
+            }
+        }
+
+        public long getCount() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+
+        /**
+         * Upper bound of the p-th percentile (0 to 100) in nanoseconds, 0 without samples
+         */
+        public long getPercentile(double p) {
+            long n = getCount();
+            if (n == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(n * p / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(max.get(), lowerBound(i + 1) - 1);
+            }
+            return max.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); ++i) {
+                counts.set(i, 0);
+            }
+            total.reset();
+            max.reset();
+        }
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    }
+
+    public static final class Counter {
+        Counter(String name) {
+            this.name = name;
+            all.add(this);
+        }
+
+        public void increment() {
+            if (active) {
+                count.increment();
+            }
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        private final String name;
+        private final LongAdder count = new LongAdder();
+    }
+
+    /**
+     * Last value set, and the highest one
+     */
+    public static final class Gauge {
+        Gauge(String name) {
+            this.name = name;
+            all.add(this);
+        }
+
+        public void set(long value) {
+            if (!active)
+                return;
+
+            this.value.set(value);
+            max.accumulate(value);
+
+            ValueEvent event = new ValueEvent();
+            if (event.isEnabled()) {
+                event.metric = name;
+                event.value = value;
+                event.commit();
+            }
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    }
+
+    @Name("minedit.Timing")
+    @Label("MinEdit Timing")
+    @Category("MinEdit")
+    @StackTrace(false)
+    static class TimingEvent extends Event {
+        @Label("Metric")
+        String metric;
+
+        @Label("Elapsed")
+        @Timespan
+        long elapsed;
+    }
+
+    @Name("minedit.Value")
+    @Label("MinEdit Value")
+    @Category("MinEdit")
+    @StackTrace(false)
+    static class ValueEvent extends Event {
+        @Label("Metric")
+        String metric;
+
+        @Label("Value")
+        long value;
+    }
+
+    /**
+     * Timestamp for Timer.stop(), 0 while metrics are off
+     */
+    public static long start() {
+        return active ? System.nanoTime() : 0;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether samples are being taken, because metrics are enabled or a flight recording runs
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+        if (enabled) {
+            watchRecordings();
+        }
+        update();
+    }
+
+    /**
+     * Clear all counters and histograms, gauges keep their value
+     */
+    public static void reset() {
+        for (Object metric : all) {
+            if (metric instanceof Timer t) {
+                t.reset();
+            } else if (metric instanceof Counter c) {
+                c.count.reset();
+            }
+        }
+    }
+
+    /**
+     * Print every metric that has seen any samples, times in milliseconds
+     */
+    public static void report(PrintStream out) {
+        out.printf("%-20s %8s %10s %10s %10s %10s %10s\n", "metric", "count", "mean", "p50", "p90", "p99", "max");
+        for (Object metric : all) {
+            if (metric instanceof Timer t && t.getCount() > 0) {
+                out.printf("%-20s %8d %10.3f %10.3f %10.3f %10.3f %10.3f\n", t.name, t.getCount(), t.getMean() / 1e6,
+                        t.getPercentile(50) / 1e6, t.getPercentile(90) / 1e6, t.getPercentile(99) / 1e6, t.getMax() / 1e6);
+            } else if (metric instanceof Counter c && c.get() > 0) {
+                out.printf("%-20s %8d\n", c.name, c.get());
+            } else if (metric instanceof Gauge g && g.getMax() > 0) {
+                out.printf("%-20s %8s %10d %10s %10s %10s %10d\n", g.name, "", g.get(), "", "", "", g.getMax());
+            }
+        }
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return (int) nanos;
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        if (exp > 62)
+            return Long.MAX_VALUE;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS);
+    }
+
+    private static void update() {
+        active = enabled || recording;
+    }
+
+    /**
+     * Keep recording up to date from now on, a recording started with -XX:StartFlightRecording is
+     * already running here. Only the first call does anything. Registering loads a good part of JFR,
+     * so unless JFR is running already that happens on its own thread to not hold up the caller.
+     */
+    private static synchronized void watchRecordings() {
+        if (watching)
+            return;
+        watching = true;
+
+        if (FlightRecorder.isInitialized()) {
+            RecordingWatcher.register();
+            return;
+        }
+        Thread thread = new Thread(RecordingWatcher::register, "MinEdit-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A class of its own, so verifying Metrics doesn't load JFR
+     */
+    private static final class RecordingWatcher implements FlightRecorderListener {
+        static void register() {
+            FlightRecorder.addListener(new RecordingWatcher());
+        }
+
+        @Override
+        public void recorderInitialized(FlightRecorder recorder) {
+            checkRecordings(recorder);
+        }
+
+        @Override
+        public void recordingStateChanged(Recording r) {
+            checkRecordings(FlightRecorder.getFlightRecorder());
+        }
+    }
+
+    private static void checkRecordings(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            running |= r.getState() == RecordingState.RUNNING;
+        }
+        recording = running;
+        update();
+    }
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    // in report order
+    private static final List<Object> all = new ArrayList<>();
+
+    public static final Timer STARTUP = new Timer("startup");
+    public static final Timer PAINT = new Timer("paint");
+    public static final Timer STROKE = new Timer("stroke to screen");
+    public static final Timer LOAD = new Timer("load");
+    public static final Timer SAVE = new Timer("save");
+    public static final Timer CONVERT = new Timer("convert");
+    public static final Gauge HISTORY_BYTES = new Gauge("history bytes");
+    public static final Counter NEW_DOCUMENTS = new Counter("new documents");
+    public static final Counter UNDOS = new Counter("undo");
+    public static final Counter REDOS = new Counter("redo");
+    public static final Counter EVICTIONS = new Counter("sheets evicted");
+    public static final Counter CACHE_HITS = new Counter("cache hits");
+    public static final Counter CACHE_MISSES = new Counter("cache misses");
+    public static final Counter CACHE_DELETE_FAILURES = new Counter("cache entries not deleted");
+
+    private static volatile boolean enabled;
+    private static volatile boolean recording;
+    private static volatile boolean active;
+    private static boolean watching;
+
+    static {
+        if (Boolean.getBoolean("minedit.metrics")) {
+            setEnabled(true);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> report(System.out)));
+        }
+    }
+}
@@ -0,0 +1,422 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Headless batch converter, turns PNG sheets into C or ASM tile data without starting Swing.
+ * <p>
+ * usage: MinEditBatch [-j threads] [-f c|asm] [-o outdir] [-m] [-x] [-c cachedir] [-C cacheMB] [-w] (file|dir|glob)...
+ * <p>
+ * -m writes deduplicated tiles plus a tilemap (TILE mode only), -x also matches mirrored tiles.
+ * -c keeps the encoded tiles of every input in a ConversionCache so unchanged inputs skip
+ * decoding and encoding on the next run, -C caps its size (default 256 MB). -w keeps running after
+ * the first pass and converts inputs again whenever they change, see AssetWatcher.
+ * <p>
+ * Every file is converted on its own, so the output only depends on the input and
+ * is byte-identical no matter how many threads are used. Without -m or -c PNGs are streamed
+ * band by band (MinEditIO.streamPNG), so even huge sheets only need a few rows in memory.
+ * Outputs are written next to their target and renamed over it, never left half written.
+ */
+public class MinEditBatch {
+    static class Result {
+        Path input;
+        Path output;
+        long nanos;
+        long bytes;
+        boolean cached;
+        String error;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        // also on Ctrl-C in watch mode
+        Runtime.getRuntime().addShutdownHook(new Thread(MinEditBatch::deleteTempDirs));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        MinEditIO.FileType type = MinEditIO.FileType.C;
+        Path outDir = null;
+        int tilemap = TILEMAP_OFF;
+        Path cacheDir = null;
+        long cacheMB = DEFAULT_CACHE_MB;
+        boolean watch = false;
+        List<String> patterns = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-j" -> threads = Integer.parseInt(args[++i]);
+                    case "-f" -> type = parseType(args[++i]);
+                    case "-o" -> outDir = Paths.get(args[++i]);
+                    case "-m" -> tilemap = Math.max(tilemap, TILEMAP_ON);
+                    case "-x" -> tilemap = TILEMAP_FLIPS;
+                    case "-c" -> cacheDir = Paths.get(args[++i]);
+                    case "-C" -> cacheMB = Long.parseLong(args[++i]);
+                    case "-w" -> watch = true;
+                    default -> patterns.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+            return;
+        }
+
+        if (patterns.isEmpty() || threads < 1) {
+            usage();
+            return;
+        }
+
+        ConversionCache cache = null;
+        try {
+            List<Path> inputs = collectInputs(patterns);
+            if (cacheDir != null) {
+                cache = ConversionCache.open(cacheDir, cacheMB * 1024 * 1024);
+            }
+            long start = System.nanoTime();
+            List<Result> results = convertAll(inputs, outDir, type, tilemap, threads, cache);
+            long wall = System.nanoTime() - start;
+            boolean ok = report(results, threads, wall);
+
+            if (watch) {
+                Path out = outDir;
+                MinEditIO.FileType t = type;
+                int map = tilemap;
+                ConversionCache c = cache;
+                new AssetWatcher(watchRoots(patterns), watchFilter(patterns), input ->
+                        printResult(convert(input, outputFor(input, out, t), t, map, c)), threads).run();
+            }
+            if (cache != null) {
+                cache.close();
+            }
+            System.exit(ok ? 0 : 1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.printf("Error: %s\n", e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: MinEditBatch [-j threads] [-f c|asm] [-o outdir] [-m] [-x] [-c cachedir] [-C cacheMB] [-w] (file|dir|glob)...");
+        System.exit(2);
+    }
+
+    private static MinEditIO.FileType parseType(String s) {
+        return switch (s.toLowerCase()) {
+            case "c" -> MinEditIO.FileType.C;
+            case "asm" -> MinEditIO.FileType.ASM;
+            default -> throw new IllegalArgumentException(s);
+        };
+    }
+
+    /**
+     * Expand files, directories (recursively, *.png only) and globs into a sorted list of inputs
+     */
+    static List<Path> collectInputs(List<String> patterns) throws IOException {
+        TreeSet<Path> inputs = new TreeSet<>();
+
+        for (String pattern : patterns) {
+            if (isGlob(pattern)) {
+                Path base = globBase(pattern);
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                walk(base, p -> matcher.matches(p), inputs);
+            } else {
+                Path p = Paths.get(pattern);
+                if (Files.isDirectory(p)) {
+                    walk(p, MinEditBatch::isPNG, inputs);
+                } else if (Files.isRegularFile(p)) {
+                    inputs.add(p.normalize());
+                } else {
+                    throw new IOException("No such file: " + pattern);
+                }
+            }
+        }
+
+        return new ArrayList<>(inputs);
+    }
+
+    /**
+     * Directories to watch for the inputs given to collectInputs
+     */
+    static Set<Path> watchRoots(List<String> patterns) {
+        Set<Path> roots = new LinkedHashSet<>();
+        for (String pattern : patterns) {
+            Path root;
+            if (isGlob(pattern)) {
+                root = globBase(pattern);
+            } else {
+                Path p = Paths.get(pattern);
+                root = Files.isDirectory(p) ? p : p.toAbsolutePath().getParent();
+            }
+            roots.add(root.toString().isEmpty() ? Paths.get(".") : root.normalize());
+        }
+        return roots;
+    }
+
+    /**
+     * Whether a changed file (normalized, as found under watchRoots) is one collectInputs would have picked
+     */
+    static Predicate<Path> watchFilter(List<String> patterns) {
+        Predicate<Path> accept = p -> false;
+        for (String pattern : patterns) {
+            Predicate<Path> test;
+            if (isGlob(pattern)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                test = matcher::matches;
+            } else {
+                Path p = Paths.get(pattern).normalize();
+                if (Files.isDirectory(p)) {
+                    test = f -> isPNG(f) && (p.toString().isEmpty() || f.startsWith(p));
+                } else {
+                    Path file = p.toAbsolutePath();
+                    test = f -> f.toAbsolutePath().equals(file);
+                }
+            }
+            accept = accept.or(test);
+        }
+        return accept;
+    }
+
+    private static boolean isGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    private static boolean isPNG(Path p) {
+        return p.getFileName().toString().toLowerCase().endsWith(".png");
+    }
+
+    /**
+     * Directory part of a glob before the first wildcard, so we don't walk the whole disk
+     */
+    private static Path globBase(String pattern) {
+        int wildcard = 0;
+        while (wildcard < pattern.length() && "*?[{".indexOf(pattern.charAt(wildcard)) < 0) {
+            wildcard++;
+        }
+        int sep = pattern.lastIndexOf(File.separatorChar, wildcard);
+        if (sep < 0) {
+            sep = pattern.lastIndexOf('/', wildcard);
+        }
+        return sep < 0 ? Paths.get("") : Paths.get(pattern.substring(0, sep + 1));
+    }
+
+    private static void walk(Path base, java.util.function.Predicate<Path> accept, Set<Path> out) throws IOException {
+        Path start = base.toString().isEmpty() ? Paths.get(".") : base;
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // match against the same form the user typed, without a leading "./"
+                Path p = base.toString().isEmpty() ? start.relativize(file) : file;
+                if (attrs.isRegularFile() && accept.test(p)) {
+                    out.add(p.normalize());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static Path outputFor(Path input, Path outDir, MinEditIO.FileType type) {
+        String name = input.getFileName().toString().replaceFirst("[.][^.]+$", "");
+        name += type == MinEditIO.FileType.ASM ? ".asm" : ".c";
+        Path dir = outDir != null ? outDir : input.toAbsolutePath().getParent();
+        return dir.resolve(name);
+    }
+
+    static List<Result> convertAll(List<Path> inputs, Path outDir, MinEditIO.FileType type, int tilemap,
+                                   int threads, ConversionCache cache) throws IOException {
+        // two inputs writing the same output would make the result depend on scheduling
+        Map<Path, Path> claimed = new HashMap<>();
+        for (Path input : inputs) {
+            Path prev = claimed.put(outputFor(input, outDir, type).toAbsolutePath(), input);
+            if (prev != null) {
+                throw new IOException(String.format("%s and %s map to the same output", prev, input));
+            }
+        }
+
+        if (outDir != null) {
+            Files.createDirectories(outDir);
+        }
+
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (Path input : inputs) {
+            tasks.add(() -> convert(input, outputFor(input, outDir, type), type, tilemap, cache));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> f : pool.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Convert one input, cache may be null
+     */
+    static Result convert(Path input, Path output, MinEditIO.FileType type, int tilemap, ConversionCache cache) {
+        Result r = new Result();
+        r.input = input;
+        r.output = output;
+
+        long start = System.nanoTime();
+        Path tmp = null;
+        try {
+            tmp = tempDir(output.toAbsolutePath().getParent()).resolve(output.getFileName());
+            write(input, tmp, tilemap, cache, r);
+            ExportCache.replace(tmp.toFile(), output.toFile());
+            r.bytes = Files.size(output);
+        } catch (Exception e) {
+            r.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            try {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        r.nanos = System.nanoTime() - start;
+        Metrics.CONVERT.record(r.nanos);
+        return r;
+    }
+
+    /**
+     * Directory next to outputs in dir to write them in before they are renamed into place. Array
+     * names come from the file name, so the temporary copy keeps it and needs a directory of its own.
+     * Created once per run, deleteTempDirs() removes them.
+     */
+    private static Path tempDir(Path dir) throws IOException {
+        try {
+            return tempDirs.computeIfAbsent(dir, d -> {
+                try {
+                    // one per process, createTempDirectory would seed a SecureRandom first
+                    return Files.createDirectories(d.resolve(".minedit-" + ProcessHandle.current().pid()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static void deleteTempDirs() {
+        for (Path dir : tempDirs.values()) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (IOException e) {
+                System.err.printf("Could not delete %s: %s\n", dir, e.getMessage());
+            }
+        }
+        tempDirs.clear();
+    }
+
+    private static void write(Path input, Path output, int tilemap, ConversionCache cache, Result r) throws IOException {
+        // without a cache or tilemap nothing needs the whole sheet, so PNGs go straight to the output
+        if (cache == null && tilemap == TILEMAP_OFF && isPNG(input)
+                && MinEditIO.streamPNG(input.toFile(), output.toFile()))
+            return;
+
+        ConversionCache.Key key = cache == null ? null : ConversionCache.key(input);
+        ConversionCache.Entry tiles = cache == null ? null : cache.get(key);
+        r.cached = tiles != null;
+        if (cache != null) {
+            (r.cached ? Metrics.CACHE_HITS : Metrics.CACHE_MISSES).increment();
+        }
+        if (tiles == null) {
+            tiles = encode(input);
+            if (cache != null) {
+                cache.put(key, tiles);
+            }
+        }
+
+        if (tilemap != TILEMAP_OFF) {
+            if (tiles.mode != DrawPanel.Mode.TILE)
+                throw new IllegalArgumentException("Tilemaps are only supported for TILE mode");
+            MinEditIO.saveTilemap(tiles.data, tiles.width, tiles.height, output.toFile(), tilemap == TILEMAP_FLIPS);
+        } else {
+            // output names end in .asm or .c, see outputFor
+            MinEditIO.saveTiles(tiles.data, tiles.width, tiles.height, tiles.mode, output.toFile());
+        }
+    }
+
+    /**
+     * Decode input and encode it with convertToMinTiles
+     */
+    private static ConversionCache.Entry encode(Path input) throws IOException {
+        BufferedImage image = MinEditIO.open(input.toFile());
+        if (image == null) {
+            throw new IOException("not an image");
+        }
+        if (image.getWidth() % 8 != 0 || image.getHeight() % 8 != 0) {
+            throw new IOException(String.format("size %dx%d is not a multiple of 8",
+                    image.getWidth(), image.getHeight()));
+        }
+
+        byte[] data = new byte[MinEditIO.encodedSize(image)];
+        MinEditIO.convertToMinTiles(image, data, 0);
+        DrawPanel.Mode mode = image.getType() == BufferedImage.TYPE_INT_RGB ? DrawPanel.Mode.SPRITE : DrawPanel.Mode.TILE;
+        return new ConversionCache.Entry(image.getWidth(), image.getHeight(), mode, data);
+    }
+
+    static void printResult(Result r) {
+        if (r.error != null) {
+            System.out.printf("FAIL %8.2f ms  %s: %s\n", r.nanos / 1e6, r.input, r.error);
+        } else {
+            System.out.printf("ok   %8.2f ms  %s -> %s%s\n", r.nanos / 1e6, r.input, r.output,
+                    r.cached ? " (cached)" : "");
+        }
+    }
+
+    /**
+     * Print per-file timings in input order and the total throughput. Returns false if any file failed.
+     */
+    static boolean report(List<Result> results, int threads, long wallNanos) {
+        long totalNanos = 0;
+        long totalBytes = 0;
+        int failed = 0;
+        int cached = 0;
+
+        for (Result r : results) {
+            printResult(r);
+            if (r.error != null) {
+                failed++;
+            }
+            if (r.cached) {
+                cached++;
+            }
+            totalNanos += r.nanos;
+            totalBytes += r.bytes;
+        }
+
+        double wallSec = wallNanos / 1e9;
+        System.out.printf("%d files (%d failed, %d cached), %d bytes written in %.2f ms on %d threads (%.2f ms summed)\n",
+                results.size(), failed, cached, totalBytes, wallNanos / 1e6, threads, totalNanos / 1e6);
+        System.out.printf("throughput: %.1f files/s, %.2f MB/s\n",
+                results.size() / wallSec, totalBytes / wallSec / (1024 * 1024));
+        return failed == 0;
+    }
+
+    private static final int TILEMAP_OFF = 0;
+    private static final int TILEMAP_ON = 1;
+    private static final int TILEMAP_FLIPS = 2;
+
+    private static final long DEFAULT_CACHE_MB = 256;
+
+    private static final Map<Path, Path> tempDirs = new ConcurrentHashMap<>();
+}
@@ -1,15 +1,18 @@
 import javax.imageio.ImageIO;
 import javax.swing.filechooser.FileFilter;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferInt;
+import java.awt.Graphics2D;
+import java.awt.image.*;
 import java.io.*;
-import java.nio.Buffer;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 public class MinEditIO {
-    public enum FileType {ASM, PNG, C}
+    // ordinals are part of ConversionCache keys, only append
+    public enum FileType {ASM, PNG, C, PROJECT}
 
     public static class ASMSaveFilter extends FileFilter {
         @Override
@@ -59,25 +62,74 @@ public class MinEditIO {
         }
     }
 
+    public static class ProjectFilter extends FileFilter {
+        @Override
+        public boolean accept(File f) {
+            if (f.isDirectory()) {
+                return false;
+            }
+            String filename = f.getName().toLowerCase();
+            return filename.endsWith(".minproj");
+        }
+
+        @Override
+        public String getDescription() {
+            return "*.minproj";
+        }
+    }
+
+    /**
+     * Load any supported file as an image, a project's canvas is read in completely.
+     * The editor opens projects with openProject instead.
+     */
     public static BufferedImage open(File location) throws IOException {
         BufferedImage result = null;
-        System.out.printf("Loading image %s\n", location.getName());
+        long start = Metrics.start();
 
         switch (resolveFileType(location)) {
             case PNG -> result = loadPNG(location);
             case C -> result = loadC(location);
+            case ASM -> result = loadASM(location);
+            case PROJECT -> result = ProjectFile.open(location).getDocument().toImage();
         }
 
+        Metrics.LOAD.stop(start);
         return result;
     }
 
+    /**
+     * Map a .minproj file, only its header is read here, see ProjectFile
+     */
+    public static ProjectFile openProject(File location) throws IOException {
+        long start = Metrics.start();
+        ProjectFile project = ProjectFile.open(location);
+        Metrics.LOAD.stop(start);
+        return project;
+    }
+
     public static void save(BufferedImage image, File location) throws IOException {
-        System.out.printf("Saving image as %s\n", location.getName());
+        long start = Metrics.start();
         switch (resolveFileType(location)) {
             case PNG -> savePNG(image, location);
             case C -> saveC(image, location);
             case ASM -> saveASM(image, location);
+            case PROJECT -> new ProjectFile(TileCanvas.fromImage(image)).save(location);
+        }
+        Metrics.SAVE.stop(start);
+    }
+
+    /**
+     * Save straight from the document, C and ASM are encoded without going through an image
+     */
+    public static void save(TileCanvas doc, File location) throws IOException {
+        long start = Metrics.start();
+        switch (resolveFileType(location)) {
+            case PNG -> savePNG(doc.toImage(), location);
+            case C -> saveC(doc, location);
+            case ASM -> saveASM(doc, location);
+            case PROJECT -> new ProjectFile(doc).save(location);
         }
+        Metrics.SAVE.stop(start);
     }
 
     public static FileType resolveFileType(File target) {
@@ -89,138 +141,200 @@ public class MinEditIO {
         if (s.endsWith(".c"))
             return FileType.C;
 
+        if (s.endsWith(".minproj"))
+            return FileType.PROJECT;
+
         // default to png
         return FileType.PNG;
     }
 
+    /**
+     * Number of bytes convertToMinTiles writes for this image, 8 per tile and twice that for sprites
+     */
+    public static int encodedSize(BufferedImage image) {
+        int tiles = (image.getWidth() / 8) * (image.getHeight() / 8);
+        return image.getType() == BufferedImage.TYPE_INT_RGB ? tiles * 16 : tiles * 8;
+    }
+
     /**
      * consider a 16x16 image,
      * Tiles are sized 8x8
      * 1  |  2
      * ---|---
      * 3  |  4
+     * <p>
+     * Convenience wrapper returning one array per 8 byte tile, see convertToMinTiles(BufferedImage, byte[], int)
      */
     static byte[][] convertToMinTiles(BufferedImage image) {
-        byte[][] res;
+        if (image.getType() != BufferedImage.TYPE_BYTE_BINARY && image.getType() != BufferedImage.TYPE_INT_RGB)
+            return null;
 
+        byte[] flat = new byte[encodedSize(image)];
+        convertToMinTiles(image, flat, 0);
+
+        byte[][] res = new byte[flat.length / 8][8];
+        for (int t = 0; t < res.length; ++t) {
+            System.arraycopy(flat, t * 8, res[t], 0, 8);
+        }
+        return res;
+    }
+
+    /**
+     * Encode image into dst at off, returns the number of bytes written (see encodedSize).
+     * <p>
+     * Every tile is gathered into a long, one byte per row, and turned into Pokemon Mini
+     * column bytes (byte = x, bit = y) with a single 8x8 bit matrix transpose.
+     * <p>
+     * - TYPE_BYTE_BINARY: one tile per 8 bytes, bit set for white
+     * - TYPE_INT_RGB: every group of 4 tiles is written as
+     * Mask (0,0) Mask (0,8)
+     * Graphic (0,0) Graphic (0,8)
+     * Mask (8,0) Mask (8,8)
+     * Graphic (8,0) Graphic (8,8)
+     * with graphic bits set for black and mask bits set for RGB_TRANS.
+     */
+    public static int convertToMinTiles(BufferedImage image, byte[] dst, int off) {
         assert ((image.getWidth() % 8 == 0 && image.getHeight() % 8 == 0));
         int tileX = image.getWidth() / 8;
-        int tileY = image.getHeight() / 8;
-        int pxX = image.getWidth();
-        int pxY = image.getHeight();
-
-        /*
-        - Binary B/W is stored as 8-pixel horizontal stripes (l-r, then u->d)
-        - RGB int is stored as individual pixels (l-r, then u->d)
-         */
+        int tiles = tileX * (image.getHeight() / 8);
+
         if (image.getType() == BufferedImage.TYPE_BYTE_BINARY) {
             byte[] raw = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-            System.out.println(Arrays.toString(raw));
-
-            // each tile = 8 bytes
-            res = new byte[tileX * tileY][8];
-
-            // convert to 8x8
-            for (int t = 0; t < res.length; ++t) {
-                for (int b = 0; b < res[0].length; ++b) {
-                    // t % tileX                                multidimensional array conversion
-                    // Math.floorDiv(t, tileY) * tileX * 8      pick correct row
-                    // b * tileX                                pick byte; * tileX to jump down a row
-                    res[t][b] = raw[t % tileX + Math.floorDiv(t, tileY) * tileX * 8 + b * tileX];
-                }
-            }
+            int stride = ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
 
-            byte[][] resRot = new byte[tileX * tileY][8];
-
-            // rotate everything 90 degrees
-            for (int t = 0; t < res.length; ++t) {
-                for (int row = 0; row < 8; ++row) {
-                    for (int bit = 0; bit < 8; ++bit) {
-                        // copy bits from vertical counterpart
-                        if ((res[t][bit] & (1 << row)) != 0) {
-                            // mirror horizontally
-                            resRot[t][7 - row] |= (1 << bit);
-                        }
-                    }
-                }
+            for (int t = 0; t < tiles; ++t) {
+                LONG_LE.set(dst, off + t * 8, binaryTile(raw, stride, t % tileX, t / tileX));
             }
-            return resRot;
+            return tiles * 8;
         } else if (image.getType() == BufferedImage.TYPE_INT_RGB) {
             int[] raw = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-            System.out.println(Arrays.toString(raw));
-
-            // each tile = 8 bytes
-            res = new byte[tileX * tileY][8];
-            for (int t = 0; t < res.length; ++t) {
-                for (int b = 0; b < 8; ++b) {
-                    // each pixel in min format is a bit, but here each is an int
-                    // we no longer have the convenience of copying 8 px at a time
-                    for (int i = 0; i < 8; ++i) {
-                        int bit = raw[t % tileX * 8 + Math.floorDiv(t, tileY) * tileX * 64 + b * pxX + i];
-                        if (bit == 0) {
-                            res[t][7 - b] |= 1 << i;
-                        }
-                    }
-                }
+            int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            checkSpriteTiles(tiles);
+
+            for (int t = 0; t < tiles; ++t) {
+                int slot = off + spriteSlot(t);
+                LONG_LE.set(dst, slot, rgbTile(raw, stride, t % tileX, t / tileX, RGB_TRANS));
+                LONG_LE.set(dst, slot + 16, rgbTile(raw, stride, t % tileX, t / tileX, RGB_BLACK));
             }
-            byte[][] resRot = rotateIntToMin(res);
-
-            byte[][] mask = new byte[tileX * tileY][8];
-            for (int t = 0; t < mask.length; ++t) {
-                for (int b = 0; b < 8; ++b) {
-                    // each pixel in min format is a bit, but here each is an int
-                    // we no longer have the convenience of copying 8 px at a time
-                    for (int i = 0; i < 8; ++i) {
-                        int bit = raw[t % tileX * 8 + Math.floorDiv(t, tileY) * tileX * 64 + b * pxX + i];
-                        if (bit == 0x800080) {
-                            mask[t][7 - b] |= 1 << i;
-                        }
-                    }
-                }
+            return tiles * 16;
+        }
+
+        throw new IllegalArgumentException("Unsupported image type " + image.getType());
+    }
+
+    /**
+     * Same as convertToMinTiles(BufferedImage, byte[], int) but writes at dst's position and advances it
+     */
+    public static int convertToMinTiles(BufferedImage image, ByteBuffer dst) {
+        int n = encodedSize(image);
+        if (dst.remaining() < n)
+            throw new BufferOverflowException();
+
+        int pos = dst.position();
+        if (dst.hasArray()) {
+            convertToMinTiles(image, dst.array(), dst.arrayOffset() + pos);
+            dst.position(pos + n);
+            return n;
+        }
+
+        assert ((image.getWidth() % 8 == 0 && image.getHeight() % 8 == 0));
+        int tileX = image.getWidth() / 8;
+        int tiles = tileX * (image.getHeight() / 8);
+
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            byte[] raw = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int stride = ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+
+            for (int t = 0; t < tiles; ++t) {
+                BUFFER_LONG_LE.set(dst, pos + t * 8, binaryTile(raw, stride, t % tileX, t / tileX));
             }
+        } else if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] raw = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            checkSpriteTiles(tiles);
 
-            byte[][] maskRot = rotateIntToMin(mask);
+            for (int t = 0; t < tiles; ++t) {
+                int slot = pos + spriteSlot(t);
+                BUFFER_LONG_LE.set(dst, slot, rgbTile(raw, stride, t % tileX, t / tileX, RGB_TRANS));
+                BUFFER_LONG_LE.set(dst, slot + 16, rgbTile(raw, stride, t % tileX, t / tileX, RGB_BLACK));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported image type " + image.getType());
+        }
 
-            byte[][] sprite = new byte[tileX * tileY * 2][8];
+        dst.position(pos + n);
+        return n;
+    }
 
-            /*
-            For every sprite, the order is as follows:
-                Mask (0,0) Mask (0,8)
-                Graphic (0,0) Graphic (0,8)
-                Mask (8,0) Mask (8,8)
-                Graphic (8,0) Graphic (8,8)
-             */
-            for (int t = 0; t < sprite.length / 2; t += 4) {
-                System.arraycopy(maskRot[t], 0, sprite[t * 2], 0, 8);
-                System.arraycopy(maskRot[t + 2], 0, sprite[t * 2 + 1], 0, 8);
+    private static void checkSpriteTiles(int tiles) {
+        if (tiles % 4 != 0)
+            throw new IllegalArgumentException("Sprite sheets must be made of whole 16x16 sprites");
+    }
 
-                System.arraycopy(resRot[t], 0, sprite[t * 2 + 2], 0, 8);
-                System.arraycopy(resRot[t + 2], 0, sprite[t * 2 + 3], 0, 8);
+    /**
+     * Byte offset of the mask of tile t in sprite output, the graphic follows 16 bytes later
+     */
+    static int spriteSlot(int t) {
+        // groups of 4 tiles take 64 bytes, tiles 0/2 go first and 1/3 second
+        return (t & ~3) * 16 + (t & 1) * 32 + (t & 2) * 4;
+    }
 
-                System.arraycopy(maskRot[t + 1], 0, sprite[t * 2 + 4], 0, 8);
-                System.arraycopy(maskRot[t + 3], 0, sprite[t * 2 + 5], 0, 8);
+    /**
+     * Gather a 1bpp tile as 8 row bytes (leftmost pixel in the high bit) and rotate into column bytes
+     */
+    static long binaryTile(byte[] raw, int stride, int tx, int ty) {
+        int idx = ty * 8 * stride + tx;
+        long rows = 0;
+        for (int y = 0; y < 8; ++y, idx += stride) {
+            rows |= (raw[idx] & 0xFFL) << (y * 8);
+        }
+        // rows have x mirrored, so the transposed columns come out in reverse order
+        return Long.reverseBytes(transpose8x8(rows));
+    }
 
-                System.arraycopy(resRot[t + 1], 0, sprite[t * 2 + 6], 0, 8);
-                System.arraycopy(resRot[t + 3], 0, sprite[t * 2 + 7], 0, 8);
+    /**
+     * Gather the pixels equal to color as 8 row bytes (leftmost pixel in the low bit) and rotate into column bytes.
+     * The top byte of raster ints is ignored, blits into TYPE_INT_RGB may leave it set.
+     */
+    static long rgbTile(int[] raw, int stride, int tx, int ty, int color) {
+        int idx = ty * 8 * stride + tx * 8;
+        long rows = 0;
+        for (int y = 0; y < 8; ++y, idx += stride) {
+            int row = 0;
+            for (int x = 0; x < 8; ++x) {
+                row |= ((raw[idx + x] & 0xFFFFFF) == color ? 1 : 0) << x;
             }
-            return sprite;
+            rows |= (long) row << (y * 8);
         }
+        return transpose8x8(rows);
+    }
 
-        return null;
+    /**
+     * Transpose an 8x8 bit matrix stored as one byte per row, bit (row * 8 + col) -> (col * 8 + row)
+     */
+    static long transpose8x8(long x) {
+        long t;
+        t = 0x0F0F0F0F00000000L & (x ^ (x << 28));
+        x ^= t ^ (t >>> 28);
+        t = 0x3333000033330000L & (x ^ (x << 14));
+        x ^= t ^ (t >>> 14);
+        t = 0x5500550055005500L & (x ^ (x << 7));
+        x ^= t ^ (t >>> 7);
+        return x;
     }
 
     public static byte[][] rotateIntToMin(byte[][] src) {
-        byte[][] result = new byte[src.length][src[0].length];
+        byte[][] result = new byte[src.length][8];
         // rotate everything 90 degrees
         for (int t = 0; t < result.length; ++t) {
-            for (int row = 0; row < 8; ++row) {
-                for (int bit = 0; bit < 8; ++bit) {
-                    // copy bits from vertical counterpart, reverse
-                    if ((src[t][7 - bit] & (1 << row)) != 0) {
-                        // mirror horizontally
-                        result[t][row] |= (1 << bit);
-                    }
-                }
+            long rows = 0;
+            for (int b = 0; b < 8; ++b) {
+                // reverse the rows on the way in
+                rows |= (src[t][7 - b] & 0xFFL) << (b * 8);
+            }
+            long cols = transpose8x8(rows);
+            for (int b = 0; b < 8; ++b) {
+                result[t][b] = (byte) (cols >>> (b * 8));
             }
         }
         return result;
@@ -230,34 +344,475 @@ public class MinEditIO {
         ImageIO.write(image, "png", location);
     }
 
-    public static void saveC(BufferedImage image, File location) throws FileNotFoundException {
-        StringBuilder byteString = new StringBuilder();
-        String dataName = location.getName().replaceFirst("[.][^.]+$", "");
+    public static void saveC(BufferedImage image, File location) throws IOException {
+        saveC(image, location, new CSourceWriter());
+    }
+
+    /**
+     * saveC with custom formatting (bytes per line, static, section). Like saveASM the array is
+     * preceded by a "// MinEdit: WxH MODE" comment so loadC can restore the exact sheet.
+     */
+    public static void saveC(BufferedImage image, File location, CSourceWriter writer) throws IOException {
+        DrawPanel.Mode mode = image.getType() == BufferedImage.TYPE_INT_RGB ? DrawPanel.Mode.SPRITE : DrawPanel.Mode.TILE;
+
+        byte[] res = new byte[encodedSize(image)];
+        convertToMinTiles(image, res, 0);
+
+        writeC(res, image.getWidth(), image.getHeight(), mode, location, writer);
+    }
+
+    public static void saveC(TileCanvas doc, File location) throws IOException {
+        saveC(doc, location, new CSourceWriter());
+    }
+
+    public static void saveC(TileCanvas doc, File location, CSourceWriter writer) throws IOException {
+        byte[] res = new byte[doc.encodedSize()];
+        doc.encode(res, 0);
+
+        writeC(res, doc.getWidth(), doc.getHeight(), doc.getMode(), location, writer);
+    }
+
+    /**
+     * Write tile data as .db directives, one tile (8 bytes) per line, under a label named after the file.
+     * A "; MinEdit: WxH MODE" comment records the layout so loadASM can restore the exact sheet.
+     */
+    public static void saveASM(BufferedImage image, File location) throws IOException {
+        DrawPanel.Mode mode = image.getType() == BufferedImage.TYPE_INT_RGB ? DrawPanel.Mode.SPRITE : DrawPanel.Mode.TILE;
+
+        byte[] res = new byte[encodedSize(image)];
+        convertToMinTiles(image, res, 0);
+
+        writeASM(res, image.getWidth(), image.getHeight(), mode, location);
+    }
+
+    public static void saveASM(TileCanvas doc, File location) throws IOException {
+        byte[] res = new byte[doc.encodedSize()];
+        doc.encode(res, 0);
+
+        writeASM(res, doc.getWidth(), doc.getHeight(), doc.getMode(), location);
+    }
+
+    /**
+     * Write data already encoded by convertToMinTiles as C or ASM depending on the extension,
+     * the same as saveC/saveASM would for the image it came from
+     */
+    public static void saveTiles(byte[] res, int width, int height, DrawPanel.Mode mode, File location) throws IOException {
+        if (resolveFileType(location) == FileType.ASM) {
+            writeASM(res, width, height, mode, location);
+        } else {
+            writeC(res, width, height, mode, location, new CSourceWriter());
+        }
+    }
+
+    /**
+     * Convert a PNG to C or ASM (by output extension) one band of 8 rows at a time, see PngBandReader.
+     * Only width x 8 pixels and one band of tile bytes are ever held, the output is identical to
+     * saveC/saveASM of loadPNG's image. Returns false without writing anything if the PNG can't be
+     * streamed, the caller should load it normally then.
+     */
+    public static boolean streamPNG(File input, File output) throws IOException {
+        try (PngBandReader reader = new PngBandReader(input)) {
+            if (!reader.isStreamable())
+                return false;
+
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            DrawPanel.Mode mode = reader.getMode();
+            int tileX = width / 8;
+            if (mode == DrawPanel.Mode.SPRITE) {
+                checkSpriteTiles(tileX * (height / 8));
+            }
+            boolean asm = resolveFileType(output) == FileType.ASM;
+            CSourceWriter writer = new CSourceWriter();
+
+            long[] graphic = new long[tileX];
+            long[] mask = new long[tileX];
+            // a band of tiles, plus room for sprite groups started in the band before or finished in the next
+            byte[] band = new byte[tileX * 16 + 128];
+            byte[] text = new byte[band.length / 8 * Math.max(DB_LINE.length, 8 * 6 + 1)];
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16)) {
+                out.write(asm ? asmHeader(width, height, mode, output) : cHeader(writer, width, height, mode, output));
+
+                for (int ty = 0; ty < height / 8; ++ty) {
+                    reader.readBand(graphic, mask);
+
+                    int ready;
+                    boolean split = false;
+                    if (mode == DrawPanel.Mode.TILE) {
+                        for (int tx = 0; tx < tileX; ++tx) {
+                            LONG_LE.set(band, tx * 8, graphic[tx]);
+                        }
+                        ready = tileX * 8;
+                    } else {
+                        // sprite groups of 4 tiles can straddle bands, only whole groups are written
+                        int first = ty * tileX;
+                        int base = spriteSlot(first & ~3);
+                        for (int tx = 0; tx < tileX; ++tx) {
+                            int slot = spriteSlot(first + tx) - base;
+                            LONG_LE.set(band, slot, mask[tx]);
+                            LONG_LE.set(band, slot + 16, graphic[tx]);
+                        }
+                        ready = spriteSlot((first + tileX) & ~3) - base;
+                        split = (first + tileX) % 4 != 0;
+                    }
+
+                    int len = 0;
+                    for (int i = 0; i < ready; i += 8) {
+                        if (asm) {
+                            formatDb(band, i, text, len);
+                            len += DB_LINE.length;
+                        } else {
+                            len = writer.encodeBytes(band, i, 8, text, len);
+                        }
+                    }
+                    out.write(text, 0, len);
+
+                    // keep the unfinished group at the front for the next band
+                    if (split) {
+                        System.arraycopy(band, ready, band, 0, 64);
+                    }
+                }
+
+                if (!asm) {
+                    out.write(CSourceWriter.FOOTER);
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void writeASM(byte[] res, int width, int height, DrawPanel.Mode mode, File location) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(location), 1 << 16)) {
+            out.write(asmHeader(width, height, mode, location));
+            writeDb(out, res, res.length);
+        }
+    }
+
+    private static void writeC(byte[] res, int width, int height, DrawPanel.Mode mode, File location,
+                               CSourceWriter writer) throws IOException {
+        byte[] layout = cLayout(width, height, mode);
+        String name = dataName(location);
+
+        byte[] source = new byte[layout.length + writer.encodedLength(name, res.length)];
+        System.arraycopy(layout, 0, source, 0, layout.length);
+        writer.encode(name, res, 0, res.length, source, layout.length);
+        CSourceWriter.write(source, location);
+    }
+
+    /**
+     * Metadata comment and array declaration that start every saveC file
+     */
+    static byte[] cHeader(CSourceWriter writer, int width, int height, DrawPanel.Mode mode, File location) {
+        byte[] layout = cLayout(width, height, mode);
+        byte[] declaration = writer.header("char", dataName(location));
+
+        byte[] header = new byte[layout.length + declaration.length];
+        System.arraycopy(layout, 0, header, 0, layout.length);
+        System.arraycopy(declaration, 0, header, layout.length, declaration.length);
+        return header;
+    }
+
+    /**
+     * "// MinEdit: WxH MODE" line, the C counterpart of the comment in asmHeader
+     */
+    private static byte[] cLayout(int width, int height, DrawPanel.Mode mode) {
+        return String.format("// %s %dx%d %s\n", TileDataParser.METADATA_TAG, width, height, mode)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Metadata comment and label that start every saveASM file
+     */
+    static byte[] asmHeader(int width, int height, DrawPanel.Mode mode, File location) {
+        String header = String.format("; %s %dx%d %s\n%s:\n", TileDataParser.METADATA_TAG,
+                width, height, mode, dataName(location));
+        return header.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Array/label name for a file, its name without the extension
+     */
+    static String dataName(File location) {
+        return location.getName().replaceFirst("[.][^.]+$", "");
+    }
+
+    /**
+     * TILE mode export with duplicate tiles removed: a bank of unique tiles named after the file,
+     * then name_map with the bank index of every tile (unsigned char, or unsigned short past 256 tiles)
+     * and, with flips, name_flags holding TileBank.FLIP_H/FLIP_V per tile. Mirrored copies of a tile
+     * only count as duplicates when flips is set. Written as C or ASM depending on the extension.
+     */
+    public static void saveTilemap(BufferedImage image, File location, boolean flips) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_BYTE_BINARY)
+            throw new IllegalArgumentException("Tilemaps are only supported for TILE mode");
+
+        byte[] res = new byte[encodedSize(image)];
+        convertToMinTiles(image, res, 0);
+        saveTilemap(res, image.getWidth(), image.getHeight(), location, flips);
+    }
 
-        byte[][] res = convertToMinTiles(image);
+    /**
+     * saveTilemap for TILE mode data already encoded by convertToMinTiles
+     */
+    public static void saveTilemap(byte[] res, int width, int height, File location, boolean flips) throws IOException {
+        String dataName = dataName(location);
+        TileBank bank = TileBank.build(res, 0, res.length / 8, flips);
+        byte[] tiles = bank.getTileBytes();
+        int[] map = bank.getMap();
+        boolean wide = bank.getUniqueCount() > 256;
+        String comment = String.format("tilemap %dx%d tiles, %d unique", width / 8,
+                height / 8, bank.getUniqueCount());
+
+        if (resolveFileType(location) == FileType.ASM) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(location), 1 << 16)) {
+                out.write(String.format("; %s\n%s:\n", comment, dataName).getBytes(StandardCharsets.UTF_8));
+                writeDb(out, tiles, tiles.length);
+
+                out.write(String.format("%s_map:\n", dataName).getBytes(StandardCharsets.UTF_8));
+                if (wide) {
+                    writeDw(out, map, map.length);
+                } else {
+                    writeDb(out, toBytes(map), map.length);
+                }
 
-        assert res != null;
-        for (byte[] tile : res) {
-            for (byte b : tile) {
-                byteString.append("0x").append(String.format("%02x", b)).append(", ");
+                if (flips) {
+                    out.write(String.format("%s_flags:\n", dataName).getBytes(StandardCharsets.UTF_8));
+                    writeDb(out, bank.getFlags(), map.length);
+                }
             }
-            byteString.append("\n"); // 8 bytes (1 tile) per line
+            return;
+        }
+
+        CSourceWriter writer = new CSourceWriter();
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        source.write(String.format("// %s\n", comment).getBytes(StandardCharsets.UTF_8));
+        source.write(writer.encode(dataName, tiles, 0, tiles.length));
+        if (wide) {
+            source.write(writer.encodeShorts(dataName + "_map", map, 0, map.length));
+        } else {
+            source.write(writer.encode("unsigned char", dataName + "_map", toBytes(map), 0, map.length));
+        }
+        if (flips) {
+            source.write(writer.encode("unsigned char", dataName + "_flags", bank.getFlags(), 0, map.length));
+        }
+        CSourceWriter.write(source.toByteArray(), location);
+    }
+
+    private static byte[] toBytes(int[] values) {
+        byte[] res = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            res[i] = (byte) values[i];
         }
+        return res;
+    }
 
-        PrintWriter writer = new PrintWriter(location);
-        writer.printf("const char %s[] = {\n%s};\n", dataName, byteString.toString());
-        writer.close();
+    /**
+     * One full ".db" line for the 8 bytes at off, written at dst[p] (DB_LINE.length bytes)
+     */
+    static void formatDb(byte[] data, int off, byte[] dst, int p) {
+        System.arraycopy(DB_LINE, 0, dst, p, DB_LINE.length);
+        for (int b = 0; b < 8; ++b) {
+            int v = data[off + b] & 0xFF;
+            dst[p + 6 + b * 4] = HEX_PAIRS[v * 2];
+            dst[p + 7 + b * 4] = HEX_PAIRS[v * 2 + 1];
+        }
+    }
+
+    /**
+     * ".db $xx,..." lines of 8 bytes, patched into a reused template line from the hex table
+     */
+    private static void writeDb(OutputStream out, byte[] data, int len) throws IOException {
+        byte[] line = DB_LINE.clone();
+
+        for (int i = 0; i < len; i += 8) {
+            int n = Math.min(8, len - i);
+            for (int b = 0; b < n; ++b) {
+                int v = data[i + b] & 0xFF;
+                line[6 + b * 4] = HEX_PAIRS[v * 2];
+                line[7 + b * 4] = HEX_PAIRS[v * 2 + 1];
+            }
+            if (n == 8) {
+                out.write(line);
+            } else {
+                // short last line, cut before the comma after the last value
+                out.write(line, 0, 4 + n * 4);
+                out.write('\n');
+            }
+        }
     }
 
-    public static void saveASM(BufferedImage image, File location) {
+    /**
+     * ".dw $xxxx,..." lines of 8 values
+     */
+    private static void writeDw(OutputStream out, int[] data, int len) throws IOException {
+        byte[] line = "\t.dw $0000,$0000,$0000,$0000,$0000,$0000,$0000,$0000\n".getBytes(StandardCharsets.US_ASCII);
+
+        for (int i = 0; i < len; i += 8) {
+            int n = Math.min(8, len - i);
+            for (int b = 0; b < n; ++b) {
+                int hi = (data[i + b] >> 8) & 0xFF;
+                int lo = data[i + b] & 0xFF;
+                line[6 + b * 6] = HEX_PAIRS[hi * 2];
+                line[7 + b * 6] = HEX_PAIRS[hi * 2 + 1];
+                line[8 + b * 6] = HEX_PAIRS[lo * 2];
+                line[9 + b * 6] = HEX_PAIRS[lo * 2 + 1];
+            }
+            if (n == 8) {
+                out.write(line);
+            } else {
+                out.write(line, 0, 4 + n * 6);
+                out.write('\n');
+            }
+        }
     }
 
     public static BufferedImage loadPNG(File location) throws IOException {
-        return ImageIO.read(location);
+        BufferedImage image = ImageIO.read(location);
+        if (image == null) {
+            return null;
+        }
+
+        // 1 bit images are tiles, anything else becomes an int rgb sprite
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY && image.getColorModel().getPixelSize() == 1)
+            return image;
+        if (image.getType() == BufferedImage.TYPE_INT_RGB)
+            return image;
+
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = rgb.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+
+        // some blits leave 0xFF in the unused top byte, the encoders compare plain 0xRRGGBB ints
+        int[] raw = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < raw.length; ++i) {
+            raw[i] &= 0xFFFFFF;
+        }
+        return rgb;
     }
 
     public static BufferedImage loadC(File location) throws IOException {
-        Scanner s = new Scanner(location);
-        return null;
+        return decodeMinTiles(TileDataParser.parseC(location));
+    }
+
+    public static BufferedImage loadASM(File location) throws IOException {
+        return decodeMinTiles(TileDataParser.parseASM(location));
+    }
+
+    /**
+     * Decode parsed tile data, using the layout from its MinEdit: comment if it had one.
+     * <p>
+     * Otherwise the data is taken as a sprite strip 16px wide if every mask/graphic pair is disjoint
+     * (no pixel is both black and transparent), else as tiles, square if possible.
+     */
+    static BufferedImage decodeMinTiles(TileDataParser.Result parsed) throws IOException {
+        byte[] data = parsed.data;
+        int len = parsed.length;
+        if (parsed.mode != null) {
+            int unit = parsed.mode == DrawPanel.Mode.SPRITE ? 16 : 8;
+            if (parsed.width <= 0 || parsed.height <= 0 || parsed.width % unit != 0 || parsed.height % unit != 0)
+                throw new IOException(String.format("Invalid size %dx%d for %s, must be a positive multiple of %d",
+                        parsed.width, parsed.height, parsed.mode, unit));
+            long expected = (long) (parsed.width / 8) * (parsed.height / 8) * (unit == 16 ? 16 : 8);
+            if (expected != len)
+                throw new IOException(String.format("Expected %d bytes for %dx%d %s, found %d",
+                        expected, parsed.width, parsed.height, parsed.mode, len));
+            return decodeMinTiles(data, 0, parsed.width, parsed.height, parsed.mode);
+        }
+
+        if (len == 0 || len % 8 != 0)
+            throw new IOException("Tile data must be a multiple of 8 bytes, found " + len);
+
+        if (looksLikeSprites(data, len)) {
+            return decodeMinTiles(data, 0, 16, len / 64 * 16, DrawPanel.Mode.SPRITE);
+        }
+
+        int tiles = len / 8;
+        int tileX = (int) Math.sqrt(tiles);
+        if (tileX * tileX != tiles) {
+            tileX = Math.min(tiles, 16);
+            while (tiles % tileX != 0) {
+                tileX--;
+            }
+        }
+        return decodeMinTiles(data, 0, tileX * 8, tiles / tileX * 8, DrawPanel.Mode.TILE);
+    }
+
+    private static boolean looksLikeSprites(byte[] data, int len) {
+        if (len % 64 != 0)
+            return false;
+        for (int t = 0; t < len / 16; ++t) {
+            int slot = spriteSlot(t);
+            if (((long) LONG_LE.get(data, slot) & (long) LONG_LE.get(data, slot + 16)) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reverse of convertToMinTiles, rebuild an image from Pokemon Mini tile data at off.
+     * Tiles come back as TYPE_BYTE_BINARY, sprites as TYPE_INT_RGB.
+     */
+    public static BufferedImage decodeMinTiles(byte[] src, int off, int width, int height, DrawPanel.Mode mode) {
+        int tileX = width / 8;
+        int tiles = tileX * (height / 8);
+
+        if (mode == DrawPanel.Mode.TILE) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            byte[] raw = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int stride = ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+
+            for (int t = 0; t < tiles; ++t) {
+                // transposing is its own inverse
+                long rows = transpose8x8(Long.reverseBytes((long) LONG_LE.get(src, off + t * 8)));
+                int idx = t / tileX * 8 * stride + t % tileX;
+                for (int y = 0; y < 8; ++y, idx += stride) {
+                    raw[idx] = (byte) (rows >>> (y * 8));
+                }
+            }
+            return image;
+        }
+
+        checkSpriteTiles(tiles);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] raw = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+
+        for (int t = 0; t < tiles; ++t) {
+            int slot = off + spriteSlot(t);
+            long mask = transpose8x8((long) LONG_LE.get(src, slot));
+            long ink = transpose8x8((long) LONG_LE.get(src, slot + 16));
+            int idx = t / tileX * 8 * stride + t % tileX * 8;
+            for (int y = 0; y < 8; ++y, idx += stride) {
+                int m = (int) (mask >>> (y * 8));
+                int k = (int) (ink >>> (y * 8));
+                for (int x = 0; x < 8; ++x) {
+                    raw[idx + x] = ((m >> x) & 1) != 0 ? RGB_TRANS : ((k >> x) & 1) != 0 ? RGB_BLACK : RGB_WHITE;
+                }
+            }
+        }
+        return image;
     }
+
+    static final int RGB_BLACK = 0x000000;
+    static final int RGB_WHITE = 0xFFFFFF;
+    static final int RGB_TRANS = 0x800080;
+
+    /**
+     * Two lowercase hex digits for every byte value
+     */
+    static final byte[] HEX_PAIRS = new byte[512];
+    static final byte[] DB_LINE = "\t.db $00,$00,$00,$00,$00,$00,$00,$00\n".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        byte[] digits = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < 256; ++i) {
+            HEX_PAIRS[i * 2] = digits[i >> 4];
+            HEX_PAIRS[i * 2 + 1] = digits[i & 0xF];
+        }
+    }
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUFFER_LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
 }
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a PNG one band of 8 rows at a time and hands out each band as encoded tiles, so a sheet
+ * can be converted while only width x 8 pixels are in memory.
+ * <p>
+ * ImageReader with a source region would decode the whole image up to the band again for every
+ * band, so the IDAT stream is inflated and unfiltered here instead, row by row. Pixels are judged
+ * exactly like MinEditIO.loadPNG + convertToMinTiles would: 1 bit gray and palette images are TILE
+ * mode and keep their raw bits, everything else is SPRITE mode after compositing over black, where
+ * only pure black and RGB_TRANS matter. Formats where that would take more than a table lookup
+ * (interlaced, 16 bit, gray with alpha, color keys) aren't streamable, isStreamable() tells the
+ * caller to fall back to ImageIO.
+ */
+public class PngBandReader implements Closeable {
+    public PngBandReader(File location) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(location), 1 << 16));
+        Arrays.fill(paletteAlpha, 255);
+        try {
+            readHeader();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (in.readLong() != PNG_SIGNATURE)
+            throw new IOException("Not a PNG file");
+
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == IDAT) {
+                chunkLeft = length;
+                break;
+            }
+            if (type == IEND)
+                throw new IOException("No image data");
+
+            byte[] data = new byte[length];
+            in.readFully(data);
+            in.readInt();
+            switch (type) {
+                case IHDR -> {
+                    DataInputStream ihdr = new DataInputStream(new ByteArrayInputStream(data));
+                    width = ihdr.readInt();
+                    height = ihdr.readInt();
+                    depth = ihdr.readUnsignedByte();
+                    colorType = ihdr.readUnsignedByte();
+                    ihdr.readUnsignedByte();
+                    ihdr.readUnsignedByte();
+                    interlaced = ihdr.readUnsignedByte() != 0;
+                }
+                case PLTE -> {
+                    for (int i = 0; i < length / 3; ++i) {
+                        palette[i] = ((data[i * 3] & 0xFF) << 16) | ((data[i * 3 + 1] & 0xFF) << 8) | (data[i * 3 + 2] & 0xFF);
+                    }
+                }
+                case TRNS -> {
+                    transparency = true;
+                    for (int i = 0; i < length && colorType == COLOR_PALETTE; ++i) {
+                        paletteAlpha[i] = data[i] & 0xFF;
+                    }
+                }
+            }
+        }
+
+        binary = depth == 1 && (colorType == COLOR_GRAY || colorType == COLOR_PALETTE);
+        int channels = switch (colorType) {
+            case COLOR_RGB -> 3;
+            case COLOR_GRAY_ALPHA -> 2;
+            case COLOR_RGBA -> 4;
+            default -> 1;
+        };
+        bpp = Math.max(1, channels * depth / 8);
+        rowBytes = (int) (((long) width * channels * depth + 7) / 8);
+
+        if (colorType == COLOR_PALETTE) {
+            for (int i = 0; i < palette.length; ++i) {
+                palette[i] = overBlack(palette[i], paletteAlpha[i]);
+            }
+        }
+    }
+
+    /**
+     * Whether readBand() can decode this file, otherwise use MinEditIO.loadPNG
+     */
+    public boolean isStreamable() {
+        if (interlaced || depth > 8)
+            return false;
+        if (binary)
+            return !transparency;
+        return switch (colorType) {
+            case COLOR_GRAY -> !transparency;
+            case COLOR_RGB, COLOR_RGBA -> depth == 8 && !transparency;
+            case COLOR_PALETTE -> true;
+            default -> false;
+        };
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public DrawPanel.Mode getMode() {
+        return binary ? DrawPanel.Mode.TILE : DrawPanel.Mode.SPRITE;
+    }
+
+    /**
+     * Decode the next 8 rows. For each of the width / 8 tiles of the band, graphic gets the tile as
+     * convertToMinTiles encodes it (white bits for TILE, black bits for SPRITE) and, for SPRITE, mask
+     * its RGB_TRANS bits. The image must be a whole number of tiles.
+     */
+    public void readBand(long[] graphic, long[] mask) throws IOException {
+        if (rows == null) {
+            if (width % 8 != 0 || height % 8 != 0)
+                throw new IOException(String.format("size %dx%d is not a multiple of 8", width, height));
+            rows = new InflaterInputStream(new IdatStream(), new Inflater(), 1 << 16);
+            row = new byte[rowBytes + 1];
+            prev = new byte[rowBytes + 1];
+            blackRows = new long[width / 8];
+            transRows = new long[width / 8];
+        }
+
+        int tiles = width / 8;
+        Arrays.fill(blackRows, 0);
+        Arrays.fill(transRows, 0);
+        for (int y = 0; y < 8; ++y) {
+            readRow();
+            int shift = y * 8;
+            if (binary) {
+                for (int tx = 0; tx < tiles; ++tx) {
+                    blackRows[tx] |= (row[1 + tx] & 0xFFL) << shift;
+                }
+                continue;
+            }
+
+            for (int tx = 0; tx < tiles; ++tx) {
+                int black = 0;
+                int trans = 0;
+                for (int x = 0; x < 8; ++x) {
+                    int rgb = pixel(tx * 8 + x);
+                    black |= (rgb == MinEditIO.RGB_BLACK ? 1 : 0) << x;
+                    trans |= (rgb == MinEditIO.RGB_TRANS ? 1 : 0) << x;
+                }
+                blackRows[tx] |= (long) black << shift;
+                transRows[tx] |= (long) trans << shift;
+            }
+        }
+
+        for (int tx = 0; tx < tiles; ++tx) {
+            if (binary) {
+                // same as MinEditIO.binaryTile, the rows have x mirrored
+                graphic[tx] = Long.reverseBytes(MinEditIO.transpose8x8(blackRows[tx]));
+            } else {
+                graphic[tx] = MinEditIO.transpose8x8(blackRows[tx]);
+                mask[tx] = MinEditIO.transpose8x8(transRows[tx]);
+            }
+        }
+    }
+
+    /**
+     * Composited RGB of pixel x in the current row
+     */
+    private int pixel(int x) {
+        switch (colorType) {
+            case COLOR_GRAY -> {
+                int v = sample(x);
+                // gray only ever turns into black at 0, which is all that matters
+                return v == 0 ? 0 : 0xFFFFFF;
+            }
+            case COLOR_PALETTE -> {
+                return palette[sample(x)];
+            }
+            case COLOR_RGB -> {
+                int i = 1 + x * 3;
+                return ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+            }
+            default -> {
+                int i = 1 + x * 4;
+                int rgb = ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                return overBlack(rgb, row[i + 3] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Packed sample of pixel x, for depths up to 8
+     */
+    private int sample(int x) {
+        if (depth == 8)
+            return row[1 + x] & 0xFF;
+        int perByte = 8 / depth;
+        int b = row[1 + x / perByte] & 0xFF;
+        int shift = 8 - depth * (x % perByte + 1);
+        return (b >>> shift) & ((1 << depth) - 1);
+    }
+
+    /**
+     * rgb with alpha drawn onto black, rounded the way Java2D does it
+     */
+    private static int overBlack(int rgb, int alpha) {
+        if (alpha == 255)
+            return rgb;
+        int r = (((rgb >>> 16) & 0xFF) * alpha + 127) / 255;
+        int g = (((rgb >>> 8) & 0xFF) * alpha + 127) / 255;
+        int b = ((rgb & 0xFF) * alpha + 127) / 255;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Inflate and unfilter the next row into row, the previous one is kept in prev
+     */
+    private void readRow() throws IOException {
+        byte[] t = prev;
+        prev = row;
+        row = t;
+        if (rows.readNBytes(row, 0, row.length) != row.length)
+            throw new EOFException("Image data ends early");
+
+        int filter = row[0];
+        for (int i = 1; i < row.length; ++i) {
+            int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = i > bpp ? prev[i - bpp] & 0xFF : 0;
+            int v = row[i] & 0xFF;
+            row[i] = (byte) switch (filter) {
+                case 0 -> v;
+                case 1 -> v + a;
+                case 2 -> v + b;
+                case 3 -> v + ((a + b) >>> 1);
+                case 4 -> v + paeth(a, b, c);
+                default -> throw new IOException("Bad filter type " + filter);
+            };
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Data of consecutive IDAT chunks as one stream
+     */
+    private class IdatStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (chunkLeft == 0) {
+                if (done)
+                    return -1;
+                // CRC of the finished chunk, then the next header
+                in.readInt();
+                int length = in.readInt();
+                if (in.readInt() != IDAT) {
+                    done = true;
+                    return -1;
+                }
+                chunkLeft = length;
+            }
+            int n = in.read(b, off, Math.min(len, chunkLeft));
+            if (n < 0)
+                throw new EOFException("Truncated IDAT chunk");
+            chunkLeft -= n;
+            return n;
+        }
+
+        private boolean done;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private final DataInputStream in;
+    private int chunkLeft;
+
+    private int width;
+    private int height;
+    private int depth;
+    private int colorType;
+    private boolean interlaced;
+    private boolean transparency;
+    private boolean binary;
+    private final int[] palette = new int[256];
+    private final int[] paletteAlpha = new int[256];
+
+    private int bpp;
+    private int rowBytes;
+    private InputStream rows;
+    private byte[] row;
+    private byte[] prev;
+
+    // one long per tile of the band, a byte per row
+    private long[] blackRows;
+    private long[] transRows;
+}
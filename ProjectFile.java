@@ -0,0 +1,253 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * MinEdit's own file format (.minproj): the canvas with its mode, the tool, brush size and zoom it
+ * was edited with and optionally the undo history, so a sheet can be picked up where it was left.
+ * <p>
+ * Everything is little endian:
+ * - a HEADER_SIZE byte header: magic, version, width, height, mode, tool, brush size, scale,
+ * tiles per chunk side, and offset and length of the history
+ * - a table with an ink and a mask entry for every TileCanvas chunk (8x8 tiles, row-major): ZERO_CHUNK
+ * or ONE_CHUNK if all its tiles are 0 or -1, otherwise the file offset of its tiles
+ * - the chunks that aren't uniform, CHUNK_SIZE tile longs each in the canvas' own column-byte layout
+ * - the history as written by EditHistory.Snapshot, deflated
+ * <p>
+ * open() maps the file and reads nothing but the header and the table. Its canvas copies chunks out
+ * of the mapping the first time they are touched and the history is only inflated when asked for,
+ * so opening takes about the same time for any canvas size. save() puts the header and table, the
+ * chunks and the history in one buffer each and writes them with a single gathering write.
+ */
+public class ProjectFile {
+    /**
+     * Project to save, doc should be a snapshot that isn't written to anymore. history may be null.
+     */
+    public ProjectFile(TileCanvas doc, EditHistory.Snapshot history, MinEdit.Tool tool, int brushSize, float scale) {
+        this.doc = doc;
+        this.snapshot = history;
+        this.tool = tool == null ? MinEdit.Tool.PENCIL : tool;
+        this.brushSize = brushSize;
+        this.scale = scale;
+    }
+
+    /**
+     * Project of just a canvas, with the editor's defaults and no history
+     */
+    public ProjectFile(TileCanvas doc) {
+        this(doc, null, MinEdit.Tool.PENCIL, 1, DrawPanel.DEFAULT_SCALE);
+    }
+
+    /**
+     * Map a project file, its canvas reads chunks from the mapping as they are needed
+     */
+    public static ProjectFile open(File location) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(location.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large");
+            if (size < HEADER_SIZE)
+                throw new IOException("Not a MinEdit project");
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (buf.getLong(0) != MAGIC)
+            throw new IOException("Not a MinEdit project");
+        if (buf.getInt(8) != VERSION)
+            throw new IOException("Unsupported project version " + buf.getInt(8));
+
+        int width = buf.getInt(12);
+        int height = buf.getInt(16);
+        int mode = buf.get(20);
+        int tool = buf.get(21);
+        if (width <= 0 || height <= 0 || (long) (width / 8) * (height / 8) > Integer.MAX_VALUE / 16)
+            throw new IOException(String.format("Invalid size %dx%d", width, height));
+        if (mode < 0 || mode >= DrawPanel.Mode.values().length || tool < 0 || tool >= MinEdit.Tool.values().length)
+            throw new IOException("Invalid mode or tool");
+        if (buf.getInt(28) != TileCanvas.CHUNK_TILES)
+            throw new IOException("Unsupported chunk size " + buf.getInt(28));
+        int brushSize = buf.getShort(22);
+        float scale = buf.getFloat(24);
+        if (brushSize < 1 || brushSize > DrawPanel.MAX_BRUSH_SIZE)
+            throw new IOException("Invalid brush size " + brushSize);
+        // NaN fails both comparisons, so it has to be caught separately
+        if (Float.isNaN(scale) || scale < DrawPanel.MIN_SCALE || scale > DrawPanel.MAX_SCALE)
+            throw new IOException("Invalid scale " + scale);
+
+        LongBuffer longs = buf.asLongBuffer();
+        TileCanvas doc = new TileCanvas(width, height, DrawPanel.Mode.values()[mode], (c, mask) -> {
+            long at = longs.get(HEADER_SIZE / 8 + c * 2 + (mask ? 1 : 0));
+            if (at == ZERO_CHUNK)
+                return TileCanvas.ZEROS;
+            if (at == ONE_CHUNK)
+                return TileCanvas.ONES;
+
+            long[] chunk = new long[TileCanvas.CHUNK_SIZE];
+            longs.get((int) (at / 8), chunk);
+            return chunk;
+        });
+
+        // check the whole table now, so loading a chunk later can't fail
+        int tableEnd = HEADER_SIZE + doc.getChunkCount() * 16;
+        if (tableEnd > buf.limit())
+            throw new IOException("Truncated project");
+        for (int i = HEADER_SIZE; i < tableEnd; i += 8) {
+            long at = buf.getLong(i);
+            if (at != ZERO_CHUNK && at != ONE_CHUNK && (at < tableEnd || at % 8 != 0 || at + CHUNK_BYTES > buf.limit()))
+                throw new IOException("Invalid chunk offset " + at);
+        }
+
+        long historyAt = buf.getLong(32);
+        int historyLength = buf.getInt(40);
+        ByteBuffer history = null;
+        if (historyLength > 0) {
+            if (historyAt < tableEnd || historyAt + historyLength > buf.limit())
+                throw new IOException("Invalid history offset " + historyAt);
+            history = buf.slice((int) historyAt, historyLength);
+        }
+
+        ProjectFile project = new ProjectFile(doc, null, MinEdit.Tool.values()[tool], brushSize, scale);
+        project.history = history;
+        return project;
+    }
+
+    public TileCanvas getDocument() {
+        return doc;
+    }
+
+    /**
+     * The saved undo history for getDocument(), a new empty one if there was none
+     */
+    public EditHistory getHistory(long budget) throws IOException {
+        if (history == null)
+            return new EditHistory(budget);
+
+        byte[] compressed = new byte[history.remaining()];
+        history.duplicate().get(compressed);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(compressed))))) {
+            return EditHistory.read(in, doc, budget);
+        }
+    }
+
+    public MinEdit.Tool getTool() {
+        return tool;
+    }
+
+    public int getBrushSize() {
+        return brushSize;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * Write to a temporary sibling and rename it over location, see ExportCache.replace
+     */
+    public void save(File location) throws IOException {
+        int chunks = doc.getChunkCount();
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + chunks * 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        // place the chunks that aren't uniform after the table, in table order
+        long[][] stored = new long[chunks * 2][];
+        int n = 0;
+        long at = head.capacity();
+        for (int c = 0; c < chunks; ++c) {
+            for (int plane = 0; plane < 2; ++plane) {
+                long[] chunk = doc.getChunk(c, plane == 1);
+                long entry = uniform(chunk);
+                if (entry < 0) {
+                    entry = at;
+                    at += CHUNK_BYTES;
+                    stored[n++] = chunk;
+                }
+                head.putLong(HEADER_SIZE + (c * 2 + plane) * 8, entry);
+            }
+        }
+
+        ByteBuffer planes = ByteBuffer.allocate(n * CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        LongBuffer longs = planes.asLongBuffer();
+        for (int i = 0; i < n; ++i) {
+            longs.put(stored[i]);
+        }
+
+        ByteBuffer history = ByteBuffer.allocate(0);
+        if (snapshot != null && !snapshot.isEmpty()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes)))) {
+                snapshot.write(out);
+            }
+            history = ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        head.putLong(0, MAGIC);
+        head.putInt(8, VERSION);
+        head.putInt(12, doc.getWidth());
+        head.putInt(16, doc.getHeight());
+        head.put(20, (byte) doc.getMode().ordinal());
+        head.put(21, (byte) tool.ordinal());
+        head.putShort(22, (short) brushSize);
+        head.putFloat(24, scale);
+        head.putInt(28, TileCanvas.CHUNK_TILES);
+        head.putLong(32, history.hasRemaining() ? at : 0);
+        head.putInt(40, history.remaining());
+
+        ByteBuffer[] parts = {head, planes, history};
+        long remaining = head.remaining() + planes.remaining() + history.remaining();
+
+        File tmp = ExportCache.tempFile(location);
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                remaining -= channel.write(parts);
+            }
+        }
+        ExportCache.replace(tmp, location);
+    }
+
+    /**
+     * Table entry for a uniform chunk, or -1 if it has to be stored
+     */
+    private static long uniform(long[] chunk) {
+        if (chunk == TileCanvas.ZEROS)
+            return ZERO_CHUNK;
+        if (chunk == TileCanvas.ONES)
+            return ONE_CHUNK;
+
+        // chunks a fill made uniform again may not have been swapped for the shared ones
+        long first = chunk[0];
+        if (first != 0 && first != -1L)
+            return -1;
+        for (long tile : chunk) {
+            if (tile != first)
+                return -1;
+        }
+        return first == 0 ? ZERO_CHUNK : ONE_CHUNK;
+    }
+
+    // "MINPROJ" and a zero byte
+    static final long MAGIC = 0x004A4F52504E494DL;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    // table entries of uniform chunks, never valid offsets since the header comes first
+    static final long ZERO_CHUNK = 0;
+    static final long ONE_CHUNK = 1;
+    private static final int CHUNK_BYTES = TileCanvas.CHUNK_SIZE * 8;
+
+    private final TileCanvas doc;
+    private final MinEdit.Tool tool;
+    private final int brushSize;
+    private final float scale;
+
+    // history to save, or the deflated history of an opened file
+    private final EditHistory.Snapshot snapshot;
+    private ByteBuffer history;
+}
@@ -0,0 +1,140 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Unique tiles of a TILE mode sheet plus a tilemap pointing into them.
+ * <p>
+ * Every encoded 8x8 tile is exactly one long, so tiles are deduplicated with a
+ * primitive open-addressing hash map from tile bits to bank index, one lookup per
+ * tile (four with flips), which keeps it linear in the number of tiles. Unique
+ * tiles keep the order they first appear in.
+ */
+public class TileBank {
+    public static final int FLIP_H = 1;
+    public static final int FLIP_V = 2;
+
+    /**
+     * Deduplicate count tiles of 8 bytes at off. With flips, a tile that is a horizontally and/or
+     * vertically mirrored copy of an earlier one reuses it and records FLIP_H/FLIP_V in getFlags().
+     */
+    public static TileBank build(byte[] tiles, int off, int count, boolean flips) {
+        TileBank bank = new TileBank(count, flips);
+
+        int cap = Integer.highestOneBit(Math.max(16, count * 2 - 1)) << 1;
+        long[] keys = new long[cap];
+        int[] values = new int[cap];
+        Arrays.fill(values, -1);
+
+        for (int t = 0; t < count; ++t) {
+            long tile = (long) LONG_LE.get(tiles, off + t * 8);
+
+            int found = get(keys, values, tile);
+            int flag = 0;
+            if (found < 0 && flips) {
+                for (int f = FLIP_H; f <= (FLIP_H | FLIP_V) && found < 0; ++f) {
+                    found = get(keys, values, flip(tile, f));
+                    flag = f;
+                }
+            }
+
+            if (found < 0) {
+                found = bank.unique++;
+                bank.tiles[found] = tile;
+                put(keys, values, tile, found);
+                flag = 0;
+            }
+            bank.map[t] = found;
+            if (flips) {
+                bank.flags[t] = (byte) flag;
+            }
+        }
+        return bank;
+    }
+
+    private TileBank(int count, boolean flips) {
+        tiles = new long[count];
+        map = new int[count];
+        flags = flips ? new byte[count] : null;
+    }
+
+    /**
+     * Mirror an encoded tile (byte = column, bit = row)
+     */
+    static long flip(long tile, int flags) {
+        if ((flags & FLIP_H) != 0) {
+            tile = Long.reverseBytes(tile);
+        }
+        if ((flags & FLIP_V) != 0) {
+            // reverse the bits inside every byte
+            tile = Long.reverse(Long.reverseBytes(tile));
+        }
+        return tile;
+    }
+
+    private static int slot(long key, int mask) {
+        // murmur3 finalizer, tile bits are far from uniform
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private static int get(long[] keys, int[] values, long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return values[i];
+        }
+        return -1;
+    }
+
+    private static void put(long[] keys, int[] values, long key, int value) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    public int getUniqueCount() {
+        return unique;
+    }
+
+    /**
+     * Unique tiles, 8 bytes each, in the same format as convertToMinTiles
+     */
+    public byte[] getTileBytes() {
+        byte[] res = new byte[unique * 8];
+        for (int i = 0; i < unique; ++i) {
+            LONG_LE.set(res, i * 8, tiles[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Bank index for every tile of the sheet
+     */
+    public int[] getMap() {
+        return map;
+    }
+
+    /**
+     * FLIP_H/FLIP_V per tile of the sheet, null if flips were not enabled
+     */
+    public byte[] getFlags() {
+        return flags;
+    }
+
+    private final long[] tiles;
+    private final int[] map;
+    private final byte[] flags;
+    private int unique;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+}
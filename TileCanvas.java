@@ -0,0 +1,684 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Canvas pixels as two packed bitplanes, one long per 8x8 tile.
+ * <p>
+ * Inside a tile's long, byte x is column x and bit y of it is row y, which is the
+ * Pokemon Mini's own column-byte layout, so a tile plane is exactly the 8 bytes
+ * convertToMinTiles would write for it. The ink plane has a bit set for black pixels,
+ * the mask plane for transparent ones (sprites only). A pixel is never both.
+ * <p>
+ * Each plane is split into chunks of 8x8 tiles (64x64 pixels). A chunk that is all one value
+ * points at a shared array of zeros or ones and is only copied when something is written to it,
+ * so memory grows with the painted area rather than the canvas size: a blank atlas of any size
+ * costs two references per chunk, and TILE mode never allocates a mask at all.
+ * <p>
+ * copy() shares the written chunks too, only the chunk tables are copied. Either canvas copies a
+ * chunk it doesn't own before its first write to it, so a snapshot for saving costs O(chunks)
+ * references however much is painted, and can be read on another thread while this one is edited.
+ * <p>
+ * A canvas opened from a ChunkSource (a memory-mapped project file, see ProjectFile) starts with
+ * no chunks at all and reads each one in when it is first touched, so only the parts that are
+ * shown or edited are ever loaded.
+ * <p>
+ * BufferedImages are only made from this as views, for display and PNG files. Exporting
+ * never needs one, encode() copies the planes out tile by tile in file order.
+ * <p>
+ * Every write marks its tile dirty, so ExportCache can re-encode just those tiles.
+ */
+public class TileCanvas {
+    public static final int WHITE = 0;
+    public static final int BLACK = 1;
+    public static final int TRANS = 2;
+
+    /**
+     * Where the chunks of a canvas that wasn't read in yet come from. Called from whichever thread
+     * first touches a chunk, for copies of the canvas too.
+     */
+    public interface ChunkSource {
+        /**
+         * Chunk c of the ink or mask plane, ZEROS or ONES if it is uniform, otherwise a new array
+         * of CHUNK_SIZE tiles the canvas takes over
+         */
+        long[] load(int c, boolean mask);
+    }
+
+    /**
+     * Blank canvas, white for TILE mode and transparent for SPRITE mode.
+     * Sizes are rounded up to whole tiles.
+     */
+    public TileCanvas(int width, int height, DrawPanel.Mode mode) {
+        this.tilesX = Math.max(1, (width + 7) / 8);
+        this.tilesY = Math.max(1, (height + 7) / 8);
+        this.mode = mode;
+        chunksX = (tilesX + CHUNK_TILES - 1) >> CHUNK_BITS;
+        int chunks = chunksX * ((tilesY + CHUNK_TILES - 1) >> CHUNK_BITS);
+        ink = new long[chunks][];
+        mask = new long[chunks][];
+        inkOwned = new BitSet(chunks);
+        maskOwned = new BitSet(chunks);
+        dirty = new BitSet(tilesX * tilesY);
+        fill(mode == DrawPanel.Mode.SPRITE ? TRANS : WHITE);
+    }
+
+    /**
+     * Canvas whose chunks are read from source as they are needed. Every tile counts as dirty.
+     */
+    public TileCanvas(int width, int height, DrawPanel.Mode mode, ChunkSource source) {
+        this.tilesX = Math.max(1, (width + 7) / 8);
+        this.tilesY = Math.max(1, (height + 7) / 8);
+        this.mode = mode;
+        chunksX = (tilesX + CHUNK_TILES - 1) >> CHUNK_BITS;
+        int chunks = chunksX * ((tilesY + CHUNK_TILES - 1) >> CHUNK_BITS);
+        ink = new long[chunks][];
+        mask = new long[chunks][];
+        inkOwned = new BitSet(chunks);
+        maskOwned = new BitSet(chunks);
+        dirty = new BitSet(tilesX * tilesY);
+        dirty.set(0, getTileCount());
+        this.source = source;
+    }
+
+    private TileCanvas(TileCanvas src) {
+        tilesX = src.tilesX;
+        tilesY = src.tilesY;
+        mode = src.mode;
+        chunksX = src.chunksX;
+        // both canvases copy the shared chunks before writing to them
+        ink = src.ink.clone();
+        mask = src.mask.clone();
+        inkOwned = new BitSet(ink.length);
+        maskOwned = new BitSet(mask.length);
+        src.inkOwned.clear();
+        src.maskOwned.clear();
+        dirty = (BitSet) src.dirty.clone();
+        version = src.version;
+        // chunks not loaded yet are loaded by each copy on its own
+        source = src.source;
+    }
+
+    /**
+     * Document for an image, TYPE_BYTE_BINARY images become TILE mode and everything else SPRITE mode.
+     * Only pure black counts as black and only RGB_TRANS as transparent, like the exporter always did.
+     * Images that aren't a whole number of tiles are padded with background.
+     */
+    public static TileCanvas fromImage(BufferedImage image) {
+        boolean binary = image.getType() == BufferedImage.TYPE_BYTE_BINARY && image.getColorModel().getPixelSize() == 1;
+        TileCanvas doc = new TileCanvas(image.getWidth(), image.getHeight(), binary ? DrawPanel.Mode.TILE : DrawPanel.Mode.SPRITE);
+        boolean aligned = image.getWidth() % 8 == 0 && image.getHeight() % 8 == 0;
+
+        if (aligned && binary) {
+            byte[] raw = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int stride = ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            for (int ty = 0; ty < doc.tilesY; ++ty) {
+                for (int tx = 0; tx < doc.tilesX; ++tx) {
+                    // set bits are white in the raster
+                    doc.put(tx, ty, ~MinEditIO.binaryTile(raw, stride, tx, ty), 0);
+                }
+            }
+        } else if (aligned && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] raw = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            for (int ty = 0; ty < doc.tilesY; ++ty) {
+                for (int tx = 0; tx < doc.tilesX; ++tx) {
+                    doc.put(tx, ty, MinEditIO.rgbTile(raw, stride, tx, ty, MinEditIO.RGB_BLACK),
+                            MinEditIO.rgbTile(raw, stride, tx, ty, MinEditIO.RGB_TRANS));
+                }
+            }
+        } else {
+            for (int y = 0; y < image.getHeight(); ++y) {
+                for (int x = 0; x < image.getWidth(); ++x) {
+                    doc.set(x, y, fromRGB(image.getRGB(x, y)));
+                }
+            }
+        }
+        return doc;
+    }
+
+    public TileCanvas copy() {
+        return new TileCanvas(this);
+    }
+
+    /**
+     * Make this canvas a copy of src, which must have the same size and mode. Every tile is dirty afterwards.
+     */
+    public void copyFrom(TileCanvas src) {
+        if (src.tilesX != tilesX || src.tilesY != tilesY || src.mode != mode)
+            throw new IllegalArgumentException("Canvas size or mode differs");
+
+        System.arraycopy(src.ink, 0, ink, 0, ink.length);
+        System.arraycopy(src.mask, 0, mask, 0, mask.length);
+        inkOwned.clear();
+        maskOwned.clear();
+        src.inkOwned.clear();
+        src.maskOwned.clear();
+        source = src.source;
+        dirty.set(0, getTileCount());
+        version++;
+    }
+
+    public static int fromRGB(int rgb) {
+        return switch (rgb & 0xFFFFFF) {
+            case MinEditIO.RGB_BLACK -> BLACK;
+            case MinEditIO.RGB_TRANS -> TRANS;
+            default -> WHITE;
+        };
+    }
+
+    public static int toRGB(int value) {
+        return switch (value) {
+            case BLACK -> MinEditIO.RGB_BLACK;
+            case TRANS -> MinEditIO.RGB_TRANS;
+            default -> MinEditIO.RGB_WHITE;
+        };
+    }
+
+    public int getWidth() {
+        return tilesX * 8;
+    }
+
+    public int getHeight() {
+        return tilesY * 8;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    public DrawPanel.Mode getMode() {
+        return mode;
+    }
+
+    public int tileIndex(int x, int y) {
+        return (y >> 3) * tilesX + (x >> 3);
+    }
+
+    private static int bit(int x, int y) {
+        return ((x & 7) << 3) | (y & 7);
+    }
+
+    /**
+     * Chunk holding tile tx, ty
+     */
+    private int chunk(int tx, int ty) {
+        return (ty >> CHUNK_BITS) * chunksX + (tx >> CHUNK_BITS);
+    }
+
+    /**
+     * Index of tile tx, ty inside its chunk
+     */
+    private static int slot(int tx, int ty) {
+        return ((ty & CHUNK_MASK) << CHUNK_BITS) | (tx & CHUNK_MASK);
+    }
+
+    public int get(int x, int y) {
+        int c = chunk(x >> 3, y >> 3);
+        int s = slot(x >> 3, y >> 3);
+        int b = bit(x, y);
+        if (((maskChunk(c)[s] >>> b) & 1) != 0)
+            return TRANS;
+        return (int) (inkChunk(c)[s] >>> b) & 1;
+    }
+
+    /**
+     * Set a pixel, TRANS is drawn as BLACK in TILE mode
+     */
+    public void set(int x, int y, int value) {
+        int tx = x >> 3;
+        int ty = y >> 3;
+        long b = 1L << bit(x, y);
+        if (value == TRANS && mode == DrawPanel.Mode.TILE) {
+            value = BLACK;
+        }
+        long k = inkAt(tx, ty);
+        long m = maskAt(tx, ty);
+        put(tx, ty, value == BLACK ? k | b : k & ~b, value == TRANS ? m | b : m & ~b);
+        dirty.set(ty * tilesX + tx);
+        version++;
+    }
+
+    public long getInk(int t) {
+        return inkAt(t % tilesX, t / tilesX);
+    }
+
+    public long getMask(int t) {
+        return maskAt(t % tilesX, t / tilesX);
+    }
+
+    private long inkAt(int tx, int ty) {
+        return inkChunk(chunk(tx, ty))[slot(tx, ty)];
+    }
+
+    private long maskAt(int tx, int ty) {
+        return maskChunk(chunk(tx, ty))[slot(tx, ty)];
+    }
+
+    private long[] inkChunk(int c) {
+        long[] chunk = ink[c];
+        return chunk != null ? chunk : load(ink, c, false);
+    }
+
+    private long[] maskChunk(int c) {
+        long[] chunk = mask[c];
+        return chunk != null ? chunk : load(mask, c, true);
+    }
+
+    private long[] load(long[][] plane, int c, boolean isMask) {
+        long[] chunk = source.load(c, isMask);
+        plane[c] = chunk;
+        if (chunk != ZEROS && chunk != ONES) {
+            (isMask ? maskOwned : inkOwned).set(c);
+        }
+        return chunk;
+    }
+
+    /**
+     * Number of chunks per plane, see getChunk()
+     */
+    int getChunkCount() {
+        return ink.length;
+    }
+
+    /**
+     * Chunk c of the ink or mask plane, read in if it wasn't yet. Shared, never write to it.
+     */
+    long[] getChunk(int c, boolean isMask) {
+        return isMask ? maskChunk(c) : inkChunk(c);
+    }
+
+    public void setTile(int t, long ink, long mask) {
+        put(t % tilesX, t / tilesX, ink, mask);
+        dirty.set(t);
+        version++;
+    }
+
+    /**
+     * Store a tile, shared chunks are only copied if it actually changes them
+     */
+    private void put(int tx, int ty, long k, long m) {
+        int c = chunk(tx, ty);
+        int s = slot(tx, ty);
+        if (inkChunk(c)[s] != k) {
+            writable(ink, c)[s] = k;
+        }
+        if (maskChunk(c)[s] != m) {
+            writable(mask, c)[s] = m;
+        }
+    }
+
+    /**
+     * Chunk c of plane for writing, a chunk this canvas doesn't own (uniform or shared with a copy)
+     * is replaced by a copy first. c must be loaded.
+     */
+    private long[] writable(long[][] plane, int c) {
+        BitSet owned = plane == ink ? inkOwned : maskOwned;
+        long[] chunk = plane[c];
+        if (!owned.get(c)) {
+            chunk = chunk.clone();
+            plane[c] = chunk;
+            owned.set(c);
+        }
+        return chunk;
+    }
+
+    public void fill(int value) {
+        if (value == TRANS && mode == DrawPanel.Mode.TILE) {
+            value = BLACK;
+        }
+        // drops every chunk that was written, the canvas is back to its blank size
+        Arrays.fill(ink, value == BLACK ? ONES : ZEROS);
+        Arrays.fill(mask, value == TRANS ? ONES : ZEROS);
+        inkOwned.clear();
+        maskOwned.clear();
+        dirty.set(0, getTileCount());
+        version++;
+    }
+
+    /**
+     * Flood fill the 4-connected area of pixels equal to get(x, y) with value. beforeWrite is given the
+     * index of every tile before it is written (possibly more than once). Returns the bounds of the
+     * changed tiles in pixels, or null if nothing changed.
+     * <p>
+     * Works on whole tiles rather than pixel spans: the matching pixels of a tile are one long, so
+     * the filled area inside it is grown 64 pixels at a time with shifts until it stops changing,
+     * and its edge bits become seeds for the neighbouring tiles. Pending (tile, seed bits) pairs
+     * are kept on a growing primitive stack, tiles as ty << 16 | tx. Chunks the fill made uniform are
+     * shared again afterwards.
+     */
+    public Rectangle floodFill(int x, int y, int value, IntConsumer beforeWrite) {
+        if (value == TRANS && mode == DrawPanel.Mode.TILE) {
+            value = BLACK;
+        }
+        int target = get(x, y);
+        if (target == value)
+            return null;
+
+        long inkFlip = target == BLACK ? 0 : -1L;
+        long maskFlip = target == TRANS ? 0 : -1L;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+
+        int[] tiles = new int[64];
+        long[] seeds = new long[64];
+        int sp = 0;
+        tiles[sp] = (y >> 3) << 16 | (x >> 3);
+        seeds[sp++] = 1L << bit(x, y);
+
+        while (sp > 0) {
+            int tx = tiles[--sp] & 0xFFFF;
+            int ty = tiles[sp] >>> 16;
+            int c = chunk(tx, ty);
+            int s = slot(tx, ty);
+            long k = inkChunk(c)[s];
+            long m = maskChunk(c)[s];
+            long match = (k ^ inkFlip) & (m ^ maskFlip);
+            long fill = seeds[sp] & match;
+            if (fill == 0)
+                continue;
+
+            // grow inside the tile until nothing changes
+            long prev;
+            do {
+                prev = fill;
+                fill |= ((fill << 1) & 0xFEFEFEFEFEFEFEFEL) | ((fill >>> 1) & 0x7F7F7F7F7F7F7F7FL)
+                        | (fill << 8) | (fill >>> 8);
+                fill &= match;
+            } while (fill != prev);
+
+            int t = ty * tilesX + tx;
+            beforeWrite.accept(t);
+            // only the planes that differ between target and value change, the other chunk may stay shared
+            if (value == BLACK || inkFlip == 0) {
+                writable(ink, c)[s] = value == BLACK ? k | fill : k & ~fill;
+            }
+            if (value == TRANS || maskFlip == 0) {
+                writable(mask, c)[s] = value == TRANS ? m | fill : m & ~fill;
+            }
+            dirty.set(t);
+            version++;
+
+            minX = Math.min(minX, tx);
+            minY = Math.min(minY, ty);
+            maxX = Math.max(maxX, tx);
+            maxY = Math.max(maxY, ty);
+
+            // edge pixels seed the neighbouring tiles, unless there's nothing left to fill there
+            if (sp + 4 > tiles.length) {
+                tiles = Arrays.copyOf(tiles, tiles.length * 2);
+                seeds = Arrays.copyOf(seeds, seeds.length * 2);
+            }
+            long seed;
+            if (ty > 0 && (seed = (fill & 0x0101010101010101L) << 7) != 0
+                    && (seed & matches(tx, ty - 1, inkFlip, maskFlip)) != 0) {
+                tiles[sp] = (ty - 1) << 16 | tx;
+                seeds[sp++] = seed;
+            }
+            if (ty < tilesY - 1 && (seed = (fill & 0x8080808080808080L) >>> 7) != 0
+                    && (seed & matches(tx, ty + 1, inkFlip, maskFlip)) != 0) {
+                tiles[sp] = (ty + 1) << 16 | tx;
+                seeds[sp++] = seed;
+            }
+            if (tx > 0 && (seed = fill << 56) != 0
+                    && (seed & matches(tx - 1, ty, inkFlip, maskFlip)) != 0) {
+                tiles[sp] = ty << 16 | (tx - 1);
+                seeds[sp++] = seed;
+            }
+            if (tx < tilesX - 1 && (seed = fill >>> 56) != 0
+                    && (seed & matches(tx + 1, ty, inkFlip, maskFlip)) != 0) {
+                tiles[sp] = ty << 16 | (tx + 1);
+                seeds[sp++] = seed;
+            }
+        }
+
+        for (int cy = minY >> CHUNK_BITS; cy <= maxY >> CHUNK_BITS; ++cy) {
+            for (int cx = minX >> CHUNK_BITS; cx <= maxX >> CHUNK_BITS; ++cx) {
+                share(cy * chunksX + cx);
+            }
+        }
+        return new Rectangle(minX * 8, minY * 8, (maxX - minX + 1) * 8, (maxY - minY + 1) * 8);
+    }
+
+    private long matches(int tx, int ty, long inkFlip, long maskFlip) {
+        return (inkAt(tx, ty) ^ inkFlip) & (maskAt(tx, ty) ^ maskFlip);
+    }
+
+    /**
+     * Swap chunk c back for a shared one where all of its tiles on the canvas became the same
+     */
+    private void share(int c) {
+        int w = Math.min(CHUNK_TILES, tilesX - (c % chunksX << CHUNK_BITS));
+        int h = Math.min(CHUNK_TILES, tilesY - (c / chunksX << CHUNK_BITS));
+        ink[c] = shared(ink[c], w, h);
+        mask[c] = shared(mask[c], w, h);
+        if (ink[c] == ZEROS || ink[c] == ONES) {
+            inkOwned.clear(c);
+        }
+        if (mask[c] == ZEROS || mask[c] == ONES) {
+            maskOwned.clear(c);
+        }
+    }
+
+    private static long[] shared(long[] chunk, int w, int h) {
+        if (chunk == null || chunk == ZEROS || chunk == ONES)
+            return chunk;
+        long first = chunk[0];
+        if (first != 0 && first != -1L)
+            return chunk;
+
+        // tiles past the canvas edge are never read, so they don't have to match
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                if (chunk[(y << CHUNK_BITS) | x] != first)
+                    return chunk;
+            }
+        }
+        return first == 0 ? ZEROS : ONES;
+    }
+
+    /**
+     * Swap black and white 64 pixels at a time, transparent pixels stay. Inverting twice restores the canvas.
+     */
+    public void invert() {
+        for (int c = 0; c < ink.length; ++c) {
+            long[] m = maskChunk(c);
+            if (m == ONES)
+                continue;
+            long[] k = inkChunk(c);
+            if (m == ZEROS && (k == ZEROS || k == ONES)) {
+                ink[c] = k == ZEROS ? ONES : ZEROS;
+                continue;
+            }
+
+            k = writable(ink, c);
+            for (int s = 0; s < k.length; ++s) {
+                k[s] ^= ~m[s];
+            }
+        }
+        dirty.set(0, getTileCount());
+        version++;
+    }
+
+    /**
+     * Tiles written since the last clearDirty(), everything for a new canvas
+     */
+    public BitSet getDirty() {
+        return dirty;
+    }
+
+    public void clearDirty() {
+        dirty.clear();
+    }
+
+    /**
+     * Counts writes, unlike getDirty() it is never reset, so it tells whether the canvas changed since it was last read
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Number of bytes encode() writes, 8 per tile and twice that for sprites
+     */
+    public int encodedSize() {
+        return mode == DrawPanel.Mode.SPRITE ? getTileCount() * 16 : getTileCount() * 8;
+    }
+
+    /**
+     * Write the tiles into dst at off exactly as MinEditIO.convertToMinTiles would for toImage(),
+     * returns the number of bytes written. The planes already are the encoded tiles, so this is a copy.
+     */
+    public int encode(byte[] dst, int off) {
+        if (mode == DrawPanel.Mode.SPRITE && getTileCount() % 4 != 0)
+            throw new IllegalArgumentException("Sprite sheets must be made of whole 16x16 sprites");
+
+        for (int ty = 0, t = 0; ty < tilesY; ++ty) {
+            for (int tx = 0; tx < tilesX; ++tx, ++t) {
+                encodeTile(t, inkAt(tx, ty), maskAt(tx, ty), dst, off);
+            }
+        }
+        return encodedSize();
+    }
+
+    /**
+     * Write just tile t into an encode() buffer starting at off
+     */
+    public void encodeTile(int t, byte[] dst, int off) {
+        encodeTile(t, getInk(t), getMask(t), dst, off);
+    }
+
+    private void encodeTile(int t, long k, long m, byte[] dst, int off) {
+        if (mode == DrawPanel.Mode.TILE) {
+            // set bits are white on the device
+            LONG_LE.set(dst, off + t * 8, ~k);
+        } else {
+            int slot = off + MinEditIO.spriteSlot(t);
+            LONG_LE.set(dst, slot, m);
+            LONG_LE.set(dst, slot + 16, k);
+        }
+    }
+
+    /**
+     * New view image of the matching type, TYPE_BYTE_BINARY for TILE and TYPE_INT_RGB for SPRITE mode
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(getWidth(), getHeight(),
+                mode == DrawPanel.Mode.TILE ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_INT_RGB);
+        render(image, new Rectangle(0, 0, getWidth(), getHeight()));
+        return image;
+    }
+
+    /**
+     * Copy the tiles overlapping area (in pixels) into a view made by toImage()
+     */
+    public void render(BufferedImage view, Rectangle area) {
+        render(view, area, 0, 0);
+    }
+
+    /**
+     * Copy the tiles overlapping area into view, whose top left pixel is x0, y0 of the canvas.
+     * x0 and y0 must be multiples of 8 and view large enough for the tiles, either the type toImage()
+     * makes or TYPE_INT_RGB.
+     */
+    public void render(BufferedImage view, Rectangle area, int x0, int y0) {
+        int tx1 = Math.max(0, area.x >> 3);
+        int ty1 = Math.max(0, area.y >> 3);
+        int tx2 = Math.min(tilesX, (area.x + area.width + 7) >> 3);
+        int ty2 = Math.min(tilesY, (area.y + area.height + 7) >> 3);
+
+        if (view.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            byte[] raw = ((DataBufferByte) view.getRaster().getDataBuffer()).getData();
+            int stride = ((MultiPixelPackedSampleModel) view.getSampleModel()).getScanlineStride();
+            for (int ty = ty1; ty < ty2; ++ty) {
+                for (int tx = tx1; tx < tx2; ++tx) {
+                    // back to raster rows, leftmost pixel in the high bit, set bits white
+                    long rows = MinEditIO.transpose8x8(Long.reverseBytes(~inkAt(tx, ty)));
+                    int idx = (ty * 8 - y0) * stride + tx - (x0 >> 3);
+                    for (int y = 0; y < 8; ++y, idx += stride) {
+                        raw[idx] = (byte) (rows >>> (y * 8));
+                    }
+                }
+            }
+        } else {
+            int[] raw = ((DataBufferInt) view.getRaster().getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) view.getSampleModel()).getScanlineStride();
+            for (int ty = ty1; ty < ty2; ++ty) {
+                for (int tx = tx1; tx < tx2; ++tx) {
+                    long inkRows = MinEditIO.transpose8x8(inkAt(tx, ty));
+                    long maskRows = MinEditIO.transpose8x8(maskAt(tx, ty));
+                    int idx = (ty * 8 - y0) * stride + tx * 8 - x0;
+                    for (int y = 0; y < 8; ++y, idx += stride) {
+                        int k = (int) (inkRows >>> (y * 8));
+                        int m = (int) (maskRows >>> (y * 8));
+                        for (int x = 0; x < 8; ++x) {
+                            raw[idx + x] = ((m >> x) & 1) != 0 ? MinEditIO.RGB_TRANS
+                                    : ((k >> x) & 1) != 0 ? MinEditIO.RGB_BLACK : MinEditIO.RGB_WHITE;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Approximate heap used by the planes: the chunk tables and every chunk that is loaded and not shared
+     */
+    public long bytes() {
+        long total = 16L * ink.length;
+        for (int c = 0; c < ink.length; ++c) {
+            if (ink[c] != null && ink[c] != ZEROS && ink[c] != ONES) {
+                total += 8 * CHUNK_SIZE;
+            }
+            if (mask[c] != null && mask[c] != ZEROS && mask[c] != ONES) {
+                total += 8 * CHUNK_SIZE;
+            }
+        }
+        return total;
+    }
+
+    // chunks are CHUNK_TILES x CHUNK_TILES tiles, CHUNK_SIZE longs
+    private static final int CHUNK_BITS = 3;
+    static final int CHUNK_TILES = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_TILES - 1;
+    static final int CHUNK_SIZE = CHUNK_TILES * CHUNK_TILES;
+
+    // every uniform chunk of every canvas points at one of these, never written
+    static final long[] ZEROS = new long[CHUNK_SIZE];
+    static final long[] ONES = new long[CHUNK_SIZE];
+
+    static {
+        Arrays.fill(ONES, -1L);
+    }
+
+    private final int tilesX;
+    private final int tilesY;
+    private final DrawPanel.Mode mode;
+
+    // chunks row-major, and tiles row-major inside each
+    private final int chunksX;
+    private final long[][] ink;
+    private final long[][] mask;
+    // chunks only this canvas points at, the only ones written in place
+    private final BitSet inkOwned;
+    private final BitSet maskOwned;
+    private final BitSet dirty;
+    private long version;
+
+    // loads the chunks that are still null, if the canvas came from one
+    private ChunkSource source;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+}
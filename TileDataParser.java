@@ -0,0 +1,362 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads tile bytes back out of C arrays and assembly data directives.
+ * <p>
+ * The source is memory-mapped and scanned byte by byte with a small hand-written
+ * tokenizer, so nothing but the decoded bytes is ever copied. Numbers may be written
+ * as 0x1f, $1f, 1fh, 0b101 or decimal, from -128 to 255. A comment of the form "MinEdit: 16x16 SPRITE"
+ * (as written by saveC and saveASM) gives the sheet layout; without it the caller has to guess.
+ */
+public class TileDataParser {
+    public static class Result {
+        public byte[] data = new byte[64];
+        public int length;
+
+        // from the MinEdit: comment, -1/null if there was none
+        public int width = -1;
+        public int height = -1;
+        public DrawPanel.Mode mode;
+
+        void add(int b) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, length * 2);
+            }
+            data[length++] = (byte) b;
+        }
+
+        void addAll(byte[] bytes) {
+            if (length + bytes.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+    }
+
+    /**
+     * Bytes of the first brace-enclosed initializer in a C source, e.g. const char name[] = {0x00, ...};
+     */
+    public static Result parseC(File location) throws IOException {
+        ByteBuffer buf = map(location.toPath());
+        Result res = newResult(buf.limit());
+        int n = buf.limit();
+        boolean inData = false;
+
+        int i = 0;
+        while (i < n) {
+            byte b = buf.get(i);
+            if (b == '/' && i + 1 < n && buf.get(i + 1) == '/') {
+                int end = indexOf(buf, (byte) '\n', i + 2);
+                readMetadata(buf, i + 2, end, res);
+                i = end;
+            } else if (b == '/' && i + 1 < n && buf.get(i + 1) == '*') {
+                int end = i + 2;
+                while (end + 1 < n && !(buf.get(end) == '*' && buf.get(end + 1) == '/')) {
+                    end++;
+                }
+                readMetadata(buf, i + 2, end, res);
+                i = Math.min(n, end + 2);
+            } else if (b == '"' || b == '\'') {
+                i = skipQuoted(buf, i);
+            } else if (!inData) {
+                inData = b == '{';
+                i++;
+            } else if (b == '}') {
+                break;
+            } else if (isDigit(b) || b == '-') {
+                i = readNumber(buf, i, res);
+            } else if (isWordChar(b)) {
+                // identifier, don't mistake its digits for data
+                while (i < n && isWordChar(buf.get(i))) {
+                    i++;
+                }
+            } else {
+                i++;
+            }
+        }
+
+        if (!inData)
+            throw new IOException("No array initializer found");
+        return res;
+    }
+
+    /**
+     * Only the layout from a MinEdit: comment in the first LAYOUT_PEEK bytes, no data is read.
+     * width, height and mode stay -1/null if there is none.
+     */
+    public static Result readLayout(File location) throws IOException {
+        Result res = new Result();
+        ByteBuffer buf = ByteBuffer.allocate(LAYOUT_PEEK);
+        try (FileChannel channel = FileChannel.open(location.toPath(), StandardOpenOption.READ)) {
+            while (buf.hasRemaining() && channel.read(buf) > 0) {
+            }
+        }
+        buf.flip();
+
+        String head = new String(bytes(buf, 0, buf.limit()), StandardCharsets.ISO_8859_1);
+        int at = head.indexOf(METADATA_TAG);
+        if (at < 0)
+            return res;
+
+        int end = head.indexOf('\n', at);
+        int close = head.indexOf("*/", at);
+        if (end < 0) {
+            end = head.length();
+        }
+        if (close >= 0) {
+            end = Math.min(end, close);
+        }
+        readMetadata(buf, at, end, res);
+        return res;
+    }
+
+    /**
+     * Bytes of every db/.db/.byte/defb directive in an assembly source, .incbin files are read relative to it
+     */
+    public static Result parseASM(File location) throws IOException {
+        ByteBuffer buf = map(location.toPath());
+        Result res = newResult(buf.limit());
+        int n = buf.limit();
+
+        int i = 0;
+        while (i < n) {
+            i = skipBlanks(buf, i);
+            if (i >= n)
+                break;
+
+            byte b = buf.get(i);
+            if (b == ';') {
+                int end = indexOf(buf, (byte) '\n', i + 1);
+                readMetadata(buf, i + 1, end, res);
+                i = end;
+                continue;
+            }
+            if (b == '\n' || b == '\r') {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            while (i < n && isWordChar(buf.get(i))) {
+                i++;
+            }
+            if (i == start) {
+                // not something we understand, drop the rest of the line
+                i = indexOf(buf, (byte) '\n', i);
+                continue;
+            }
+            if (i < n && buf.get(i) == ':') {
+                // label, the directive may follow on the same line
+                i++;
+                continue;
+            }
+
+            if (isDirective(buf, start, i, "db") || isDirective(buf, start, i, "byte")
+                    || isDirective(buf, start, i, "defb") || isDirective(buf, start, i, "dc.b")) {
+                i = readNumberList(buf, i, res);
+            } else if (isDirective(buf, start, i, "incbin")) {
+                i = skipBlanks(buf, i);
+                int end = skipQuoted(buf, i);
+                String name = new String(bytes(buf, i + 1, end - 1), StandardCharsets.UTF_8);
+                Path dir = location.getAbsoluteFile().toPath().getParent();
+                res.addAll(Files.readAllBytes(dir.resolve(name)));
+                i = indexOf(buf, (byte) '\n', end);
+            } else {
+                i = indexOf(buf, (byte) '\n', i);
+            }
+        }
+
+        return res;
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private static Result newResult(int sourceSize) {
+        Result res = new Result();
+        // "0x00, " is 6 characters per byte
+        res.data = new byte[Math.max(64, sourceSize / 6)];
+        return res;
+    }
+
+    /**
+     * Comma separated numbers up to the end of the line or a comment
+     */
+    private static int readNumberList(ByteBuffer buf, int i, Result res) throws IOException {
+        int n = buf.limit();
+        while (i < n) {
+            byte b = buf.get(i);
+            if (b == '\n' || b == ';')
+                break;
+            if (isDigit(b) || b == '$' || b == '-') {
+                i = readNumber(buf, i, res);
+            } else if (b == ',' || b == ' ' || b == '\t' || b == '\r') {
+                i++;
+            } else {
+                throw new IOException("Unexpected '" + (char) b + "' at offset " + i);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Parse one number starting at i and add it as a byte, returns the offset after it.
+     * Anything that doesn't fit a signed or unsigned byte is an error rather than truncated.
+     */
+    private static int readNumber(ByteBuffer buf, int i, Result res) throws IOException {
+        int n = buf.limit();
+        int start = i;
+        boolean negative = false;
+        if (buf.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+
+        int tokenEnd = i;
+        if (tokenEnd < n && buf.get(tokenEnd) == '$') {
+            tokenEnd++;
+        }
+        while (tokenEnd < n && isWordChar(buf.get(tokenEnd))) {
+            tokenEnd++;
+        }
+        // C integer suffixes
+        int end = tokenEnd;
+        while (end > i + 1 && (lower(buf.get(end - 1)) == 'u' || lower(buf.get(end - 1)) == 'l')) {
+            end--;
+        }
+
+        int radix = 10;
+        int from = i;
+        int to = end;
+        if (buf.get(i) == '$') {
+            radix = 16;
+            from = i + 1;
+        } else if (end - i > 2 && buf.get(i) == '0' && lower(buf.get(i + 1)) == 'x') {
+            radix = 16;
+            from = i + 2;
+        } else if (end - i > 1 && lower(buf.get(end - 1)) == 'h') {
+            radix = 16;
+            to = end - 1;
+        } else if (end - i > 2 && buf.get(i) == '0' && lower(buf.get(i + 1)) == 'b') {
+            radix = 2;
+            from = i + 2;
+        }
+
+        if (from >= to)
+            throw new IOException("Bad number at offset " + start);
+
+        int max = negative ? 128 : 255;
+        int value = 0;
+        for (int j = from; j < to; ++j) {
+            int d = Character.digit(buf.get(j), radix);
+            if (d < 0)
+                throw new IOException("Bad number at offset " + start);
+            value = value * radix + d;
+            if (value > max)
+                throw new IOException("Number out of range at offset " + start);
+        }
+        res.add(negative ? -value : value);
+        return tokenEnd;
+    }
+
+    /**
+     * Look for "MinEdit: WxH MODE" between start and end
+     */
+    private static void readMetadata(ByteBuffer buf, int start, int end, Result res) {
+        String comment = new String(bytes(buf, start, end), StandardCharsets.UTF_8);
+        int at = comment.indexOf(METADATA_TAG);
+        if (at < 0)
+            return;
+
+        String[] parts = comment.substring(at + METADATA_TAG.length()).trim().split("[x ]+");
+        if (parts.length < 3)
+            return;
+        try {
+            res.width = Integer.parseInt(parts[0]);
+            res.height = Integer.parseInt(parts[1]);
+            res.mode = DrawPanel.Mode.valueOf(parts[2].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            res.width = -1;
+            res.height = -1;
+            res.mode = null;
+        }
+    }
+
+    private static boolean isDirective(ByteBuffer buf, int start, int end, String name) {
+        if (buf.get(start) == '.') {
+            start++;
+        }
+        if (end - start != name.length())
+            return false;
+        for (int j = 0; j < name.length(); ++j) {
+            if (lower(buf.get(start + j)) != name.charAt(j))
+                return false;
+        }
+        return true;
+    }
+
+    private static int skipQuoted(ByteBuffer buf, int i) {
+        int n = buf.limit();
+        byte quote = buf.get(i++);
+        while (i < n && buf.get(i) != quote && buf.get(i) != '\n') {
+            if (buf.get(i) == '\\') {
+                i++;
+            }
+            i++;
+        }
+        return Math.min(n, i + 1);
+    }
+
+    private static int skipBlanks(ByteBuffer buf, int i) {
+        while (i < buf.limit() && (buf.get(i) == ' ' || buf.get(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from) {
+        int n = buf.limit();
+        while (from < n && buf.get(from) != b) {
+            from++;
+        }
+        return from;
+    }
+
+    private static byte[] bytes(ByteBuffer buf, int start, int end) {
+        byte[] res = new byte[Math.max(0, end - start)];
+        buf.get(start, res);
+        return res;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWordChar(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_' || b == '.';
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+
+    static final String METADATA_TAG = "MinEdit:";
+
+    // saveC and saveASM put the MinEdit: comment on the first line
+    private static final int LAYOUT_PEEK = 4096;
+}
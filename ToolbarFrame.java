@@ -4,7 +4,6 @@ import java.awt.*;
 public class ToolbarFrame extends JFrame {
     public ToolbarFrame() {
         setName("Toolbar");
-        setVisible(true);
         setSize(128, 512);
         setContentPane(getContent());
     }
@@ -25,6 +24,10 @@ public class ToolbarFrame extends JFrame {
         mask.setAlignmentX(Component.CENTER_ALIGNMENT);
         panel.add(mask);
 
+        JButton fill = new ToolbarButton("Fill", MinEdit.Tool.FILL);
+        fill.setAlignmentX(Component.CENTER_ALIGNMENT);
+        panel.add(fill);
+
         return panel;
     }
 }
@@ -0,0 +1,341 @@
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of sheets opened as one project.
+ * <p>
+ * open() only reads file headers: PNG sizes come from the IHDR chunk, C/ASM layouts from their
+ * MinEdit: comment and project files from their mapped header (see ProjectFile), so indexing
+ * hundreds of sheets doesn't decode any of them. A sheet is decoded with MinEditIO.open when it
+ * is first shown (project files load chunks as they are drawn) and then kept, with its own undo history,
+ * in an LRU cache bounded by memory. Sheets pushed out of the budget are only softly reachable:
+ * going back to one is still instant unless the GC needed the heap, in which case it is decoded
+ * again with an empty history. The active sheet and sheets with unsaved changes are never evicted,
+ * and getModified() lists the latter so they can be saved before the workspace is dropped.
+ * <p>
+ * Use from the EDT, only decode() may run on another thread.
+ */
+public class Workspace {
+    public static class Sheet {
+        Sheet(File file, int width, int height, DrawPanel.Mode mode) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.mode = mode;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * -1 until decoded if the file didn't say
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * null until decoded if the file didn't say
+         */
+        public DrawPanel.Mode getMode() {
+            return mode;
+        }
+
+        public int getTileCount() {
+            return width < 0 ? -1 : ((width + 7) / 8) * ((height + 7) / 8);
+        }
+
+        @Override
+        public String toString() {
+            if (width < 0)
+                return file.getName();
+            return String.format("%s  %dx%d %s", file.getName(), width, height, mode);
+        }
+
+        private final File file;
+        private int width;
+        private int height;
+        private DrawPanel.Mode mode;
+
+        // softly kept after eviction, null once the GC took it
+        private SoftReference<Loaded> evicted;
+    }
+
+    private static class Loaded {
+        Loaded(TileCanvas doc, EditHistory history) {
+            this.doc = doc;
+            this.history = history;
+            savedVersion = doc.getVersion();
+        }
+
+        long bytes() {
+            return doc.bytes() + history.getMemoryUsage();
+        }
+
+        boolean isModified() {
+            return doc.getVersion() != savedVersion;
+        }
+
+        final TileCanvas doc;
+        final EditHistory history;
+        long savedVersion;
+    }
+
+    private Workspace(File dir, List<Sheet> sheets, List<String> skipped, long budget) {
+        this.dir = dir;
+        this.sheets = sheets;
+        this.skipped = skipped;
+        this.budget = budget;
+    }
+
+    /**
+     * Index every PNG, C, ASM and project file under dir (recursively), sorted by path
+     */
+    public static Workspace open(File dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isSheet(file.toFile())) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+
+        List<Sheet> sheets = new ArrayList<>(files.size());
+        List<String> skipped = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                sheets.add(index(file.toFile()));
+            } catch (IOException e) {
+                skipped.add(dir.toPath().relativize(file) + ": " + (e.getMessage() != null ? e.getMessage() : e));
+            }
+        }
+        return new Workspace(dir, sheets, skipped, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    private static boolean isSheet(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".c") || name.endsWith(".asm") || name.endsWith(".minproj");
+    }
+
+    /**
+     * Size and mode from the file header, without decoding
+     */
+    static Sheet index(File file) throws IOException {
+        if (MinEditIO.resolveFileType(file) == MinEditIO.FileType.PROJECT) {
+            TileCanvas doc = ProjectFile.open(file).getDocument();
+            return new Sheet(file, doc.getWidth(), doc.getHeight(), doc.getMode());
+        }
+        if (MinEditIO.resolveFileType(file) != MinEditIO.FileType.PNG) {
+            TileDataParser.Result layout = TileDataParser.readLayout(file);
+            return new Sheet(file, layout.width, layout.height, layout.mode);
+        }
+
+        // signature, IHDR length and type, then width, height, bit depth and color type
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readLong() != PNG_SIGNATURE)
+                throw new IOException("Not a PNG file");
+            in.readInt();
+            if (in.readInt() != IHDR)
+                throw new IOException("Missing IHDR");
+            int width = in.readInt();
+            int height = in.readInt();
+            int depth = in.readUnsignedByte();
+            int colorType = in.readUnsignedByte();
+
+            // 1 bit gray or palette images load as TYPE_BYTE_BINARY, see MinEditIO.loadPNG
+            boolean binary = depth == 1 && (colorType == 0 || colorType == 3);
+            return new Sheet(file, width, height, binary ? DrawPanel.Mode.TILE : DrawPanel.Mode.SPRITE);
+        }
+    }
+
+    /**
+     * Decode a sheet's file, safe to call off the EDT. Hand the result to put().
+     */
+    public static TileCanvas decode(Sheet sheet) throws IOException {
+        // chunks are read from the mapping as the sheet is shown
+        if (MinEditIO.resolveFileType(sheet.file) == MinEditIO.FileType.PROJECT)
+            return MinEditIO.openProject(sheet.file).getDocument();
+
+        BufferedImage image = MinEditIO.open(sheet.file);
+        if (image == null)
+            throw new IOException("Invalid file " + sheet.file);
+        return TileCanvas.fromImage(image);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public List<Sheet> getSheets() {
+        return Collections.unmodifiableList(sheets);
+    }
+
+    /**
+     * "path: reason" for every file open() couldn't index, paths relative to the directory
+     */
+    public List<String> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
+    /**
+     * The sheet's document if it's still in memory, or null if it has to be decoded first
+     */
+    public TileCanvas get(Sheet sheet) {
+        Loaded loaded = lookup(sheet);
+        return loaded == null ? null : loaded.doc;
+    }
+
+    /**
+     * Undo history of a sheet in memory, or null
+     */
+    public EditHistory getHistory(Sheet sheet) {
+        Loaded loaded = lookup(sheet);
+        return loaded == null ? null : loaded.history;
+    }
+
+    /**
+     * Cache a decoded sheet, ignored if it is in memory already
+     */
+    public void put(Sheet sheet, TileCanvas doc) {
+        if (lookup(sheet) != null)
+            return;
+
+        sheet.width = doc.getWidth();
+        sheet.height = doc.getHeight();
+        sheet.mode = doc.getMode();
+        cache.put(sheet, new Loaded(doc, new EditHistory(HISTORY_BUDGET)));
+    }
+
+    /**
+     * Make sheet the one being edited, it is pinned until another one is activated.
+     * Other sheets are evicted, least recently used first, until the cache fits the budget.
+     */
+    public void setActive(Sheet sheet) {
+        active = sheet;
+        lookup(sheet);
+        trim();
+    }
+
+    public Sheet getActive() {
+        return active;
+    }
+
+    /**
+     * Note that doc was written to location as of version, so the sheet from that file can be
+     * evicted again unless it changed since. Call once the write succeeded, not when it is queued.
+     */
+    public void markSaved(TileCanvas doc, File location, long version) {
+        for (Map.Entry<Sheet, Loaded> e : cache.entrySet()) {
+            Loaded loaded = e.getValue();
+            if (loaded.doc == doc && e.getKey().file.getAbsoluteFile().equals(location.getAbsoluteFile())) {
+                loaded.savedVersion = version;
+            }
+        }
+    }
+
+    /**
+     * Sheets with changes that weren't saved to their own file
+     */
+    public List<Sheet> getModified() {
+        List<Sheet> modified = new ArrayList<>();
+        for (Map.Entry<Sheet, Loaded> e : cache.entrySet()) {
+            if (e.getValue().isModified()) {
+                modified.add(e.getKey());
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Approximate bytes held by the cached documents and their histories
+     */
+    public long getMemoryUsage() {
+        long total = 0;
+        for (Loaded loaded : cache.values()) {
+            total += loaded.bytes();
+        }
+        return total;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * Cache entry for sheet, taking it back from the soft references if the GC left it there
+     */
+    private Loaded lookup(Sheet sheet) {
+        Loaded loaded = cache.get(sheet);
+        if (loaded != null)
+            return loaded;
+
+        loaded = sheet.evicted == null ? null : sheet.evicted.get();
+        sheet.evicted = null;
+        if (loaded != null) {
+            cache.put(sheet, loaded);
+        }
+        return loaded;
+    }
+
+    private void trim() {
+        long total = getMemoryUsage();
+        Iterator<Map.Entry<Sheet, Loaded>> it = cache.entrySet().iterator();
+        while (total > budget && it.hasNext()) {
+            Map.Entry<Sheet, Loaded> e = it.next();
+            Sheet sheet = e.getKey();
+            Loaded loaded = e.getValue();
+            if (sheet == active || loaded.isModified())
+                continue;
+
+            loaded.history.end();
+            sheet.evicted = new SoftReference<>(loaded);
+            total -= loaded.bytes();
+            it.remove();
+            Metrics.EVICTIONS.increment();
+        }
+    }
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+
+    // per sheet, the workspace budget covers all of them
+    private static final long HISTORY_BUDGET = 4 * 1024 * 1024;
+
+    private final File dir;
+    private final List<Sheet> sheets;
+    private final List<String> skipped;
+    private long budget;
+    private Sheet active;
+
+    // access ordered, eldest first
+    private final Map<Sheet, Loaded> cache = new LinkedHashMap<>(16, 0.75f, true);
+}
@@ -0,0 +1,285 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for the tile encoding and canvas hot paths.
+ * <p>
+ * usage: MinEditBench [-f forks] [-w warmup] [-i iterations] [-t ms] [-s 16,64,...] [-b filter]
+ * <p>
+ * Every case is warmed up, then measured for a number of fixed-length iterations. Reported are
+ * ops/s (mean and stddev over iterations), bytes allocated per op, allocation rate and GC count,
+ * measured with the thread allocation counters and the GC MX beans. Inputs are seeded so runs are comparable.
+ * <p>
+ * With -f every case runs in that many fresh JVMs one after the other, one line each, so JIT
+ * decisions and heap state left behind by earlier cases don't carry over. Without it all cases share this JVM.
+ */
+public class MinEditBench {
+    interface Op {
+        void run() throws Exception;
+    }
+
+    static class Case {
+        final String name;
+        final int size;
+        final DrawPanel.Mode mode;
+        final Op op;
+
+        Case(String name, int size, DrawPanel.Mode mode, Op op) {
+            this.name = name;
+            this.size = size;
+            this.mode = mode;
+            this.op = op;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-f" -> forks = Integer.parseInt(args[++i]);
+                case "--fork" -> {
+                    fork = args[++i];
+                    forkMode = DrawPanel.Mode.valueOf(args[++i]);
+                    sizes = parseSizes(args[++i]);
+                }
+                case "-w" -> warmup = Integer.parseInt(args[++i]);
+                case "-i" -> iterations = Integer.parseInt(args[++i]);
+                case "-t" -> iterationMillis = Integer.parseInt(args[++i]);
+                case "-s" -> sizes = parseSizes(args[++i]);
+                case "-b" -> filter = args[++i];
+                default -> {
+                    System.err.println("usage: MinEditBench [-f forks] [-w warmup] [-i iterations] [-t ms] [-s 16,64,...] [-b filter]");
+                    System.exit(2);
+                }
+            }
+        }
+
+        File tmp = File.createTempFile("minedit-bench", ".c");
+        File tmpASM = File.createTempFile("minedit-bench", ".asm");
+        tmp.deleteOnExit();
+        tmpASM.deleteOnExit();
+
+        if (fork == null) {
+            System.out.printf("%-24s %-6s %5s %14s %10s %14s %12s %5s\n",
+                    "Benchmark", "Mode", "Size", "ops/s", "stddev", "B/op", "alloc MB/s", "gc");
+        }
+
+        for (DrawPanel.Mode mode : DrawPanel.Mode.values()) {
+            if (fork != null && mode != forkMode)
+                continue;
+            for (int size : sizes) {
+                for (Case c : cases(size, mode, tmp, tmpASM)) {
+                    if (fork != null ? !c.name.equals(fork) : filter != null && !c.name.contains(filter))
+                        continue;
+                    if (forks > 0 && fork == null) {
+                        runForked(c);
+                    } else {
+                        run(c);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run c in forks new JVMs with the same class path and settings, passing their report lines through
+     */
+    static void runForked(Case c) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < forks; ++i) {
+            Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "MinEditBench",
+                    "-w", String.valueOf(warmup), "-i", String.valueOf(iterations), "-t", String.valueOf(iterationMillis),
+                    "--fork", c.name, c.mode.name(), String.valueOf(c.size))
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            if (p.waitFor() != 0)
+                throw new IOException("Forked run of " + c.name + " failed");
+        }
+    }
+
+    static List<Case> cases(int size, DrawPanel.Mode mode, File tmp, File tmpASM) throws IOException {
+        BufferedImage image = randomImage(size, mode);
+        byte[] encoded = new byte[MinEditIO.encodedSize(image)];
+        byte[][] tiles = MinEditIO.convertToMinTiles(image);
+        DrawPanel canvas = new DrawPanel();
+        canvas.allocImage(size, size, mode);
+        TileCanvas doc = TileCanvas.fromImage(image);
+
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("convertToMinTiles", size, mode, () -> MinEditIO.convertToMinTiles(image, encoded, 0)));
+        cases.add(new Case("convertToMinTiles[][]", size, mode, () -> MinEditIO.convertToMinTiles(image)));
+        cases.add(new Case("TileCanvas.encode", size, mode, () -> doc.encode(encoded, 0)));
+        cases.add(new Case("rotateIntToMin", size, mode, () -> MinEditIO.rotateIntToMin(tiles)));
+        cases.add(new Case("saveC", size, mode, () -> MinEditIO.saveC(image, tmp)));
+        cases.add(new Case("saveASM", size, mode, () -> MinEditIO.saveASM(image, tmpASM)));
+        cases.add(new Case("saveC(TileCanvas)", size, mode, () -> MinEditIO.saveC(doc, tmp)));
+        cases.add(new Case("saveASM(TileCanvas)", size, mode, () -> MinEditIO.saveASM(doc, tmpASM)));
+        // blank canvas filled black and back again
+        TileCanvas blank = new TileCanvas(size, size, mode);
+        cases.add(new Case("floodFill", size, mode, () -> blank.floodFill(0, 0,
+                blank.get(0, 0) == TileCanvas.BLACK ? TileCanvas.WHITE : TileCanvas.BLACK, t -> {
+                })));
+        // one pixel changed between saves
+        ExportCache cache = new ExportCache();
+        TileCanvas edited = doc.copy();
+        cache.update(edited, edited.getDirty());
+        cases.add(new Case("ExportCache.saveC", size, mode, () -> {
+            edited.clearDirty();
+            edited.set(0, 0, TileCanvas.BLACK);
+            cache.update(edited, edited.getDirty());
+            cache.saveC(tmp);
+        }));
+        // whole image through ImageIO against band by band
+        File png = File.createTempFile("minedit-bench", ".png");
+        png.deleteOnExit();
+        MinEditIO.savePNG(image, png);
+        cases.add(new Case("loadPNG+saveC", size, mode, () -> MinEditIO.saveC(MinEditIO.loadPNG(png), tmp)));
+        cases.add(new Case("streamPNG", size, mode, () -> MinEditIO.streamPNG(png, tmp)));
+        cases.add(new Case("allocImage", size, mode, () -> canvas.allocImage(size, size, mode)));
+        cases.add(new Case("invert", size, mode, canvas::invert));
+        // one 1024x768 window at 4x, the same work for every canvas size
+        DrawPanel view = new DrawPanel();
+        view.setDocument(doc);
+        view.setScale(4);
+        BufferedImage screen = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+        cases.add(new Case("paintComponent", size, mode, () -> {
+            Graphics2D g = screen.createGraphics();
+            g.setClip(0, 0, screen.getWidth(), screen.getHeight());
+            view.paintComponent(g);
+            g.dispose();
+        }));
+        cases.add(new Case("clone", size, mode, () -> DrawPanel.clone(image)));
+        return cases;
+    }
+
+    static BufferedImage randomImage(int size, DrawPanel.Mode mode) {
+        Random r = new Random(size * 31L + mode.ordinal());
+        BufferedImage image;
+        int[] colors;
+        if (mode == DrawPanel.Mode.SPRITE) {
+            image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            colors = new int[]{0x000000, 0xFFFFFF, 0x800080};
+        } else {
+            image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY);
+            colors = new int[]{0x000000, 0xFFFFFF};
+        }
+        for (int y = 0; y < size; ++y) {
+            for (int x = 0; x < size; ++x) {
+                image.setRGB(x, y, colors[r.nextInt(colors.length)]);
+            }
+        }
+        return image;
+    }
+
+    static void run(Case c) throws Exception {
+        for (int i = 0; i < warmup; ++i) {
+            measure(c.op);
+        }
+
+        double[] opsPerSec = new double[iterations];
+        long ops = 0;
+        long nanos = 0;
+        long allocated = 0;
+        long gcs = 0;
+        for (int i = 0; i < iterations; ++i) {
+            long gcBefore = gcCount();
+            long allocBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long[] r = measure(c.op);
+            allocated += THREADS.getCurrentThreadAllocatedBytes() - allocBefore;
+            gcs += gcCount() - gcBefore;
+
+            ops += r[0];
+            nanos += r[1];
+            opsPerSec[i] = r[0] / (r[1] / 1e9);
+        }
+
+        double mean = 0;
+        for (double v : opsPerSec) {
+            mean += v / iterations;
+        }
+        double var = 0;
+        for (double v : opsPerSec) {
+            var += (v - mean) * (v - mean) / Math.max(1, iterations - 1);
+        }
+
+        System.out.printf("%-24s %-6s %5d %14.2f %10.2f %14d %12.2f %5d\n",
+                c.name, c.mode, c.size, mean, Math.sqrt(var),
+                allocated / Math.max(1, ops), allocated / (nanos / 1e9) / (1024 * 1024), gcs);
+    }
+
+    /**
+     * Run op until the iteration time is used up, returns {ops, nanos}. stdout is silenced meanwhile
+     * so debug printing doesn't end up in the numbers or the report.
+     */
+    static long[] measure(Op op) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(NULL_OUT);
+        try {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + iterationMillis * 1_000_000L;
+            long now;
+            do {
+                op.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now < end);
+            return new long[]{ops, now - start};
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    static int[] parseSizes(String s) {
+        String[] parts = s.split(",");
+        int[] res = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            res[i] = Integer.parseInt(parts[i].trim());
+        }
+        return res;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private static int warmup = 3;
+    private static int iterations = 5;
+    private static int iterationMillis = 500;
+    private static int[] sizes = {16, 32, 64, 128, 256, 512, 1024};
+    private static String filter;
+    private static int forks;
+
+    // case this JVM was forked to run, null in the one started by hand
+    private static String fork;
+    private static DrawPanel.Mode forkMode;
+}
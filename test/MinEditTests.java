@@ -0,0 +1,729 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Round trip and regression checks for the converters and file formats.
+ * <p>
+ * usage: MinEditTests [-c filter]
+ * <p>
+ * Every check runs on seeded random inputs in a fresh temporary directory and fails by throwing.
+ * The exit status is 1 if any check failed.
+ */
+public class MinEditTests {
+    interface Check {
+        void run(Path dir) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        String filter = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-c") && i + 1 < args.length) {
+                filter = args[++i];
+            } else {
+                System.err.println("usage: MinEditTests [-c filter]");
+                System.exit(2);
+            }
+        }
+
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("batchIndexedPNG", MinEditTests::batchIndexedPNG);
+        checks.put("indexedPNGRoundTrip", MinEditTests::indexedPNGRoundTrip);
+        checks.put("cRoundTrip", MinEditTests::cRoundTrip);
+        checks.put("numberRange", MinEditTests::numberRange);
+        checks.put("layoutSize", MinEditTests::layoutSize);
+        checks.put("cacheEviction", MinEditTests::cacheEviction);
+        checks.put("workspaceSave", MinEditTests::workspaceSave);
+        checks.put("streamPNG", MinEditTests::streamPNG);
+        checks.put("projectFile", MinEditTests::projectFile);
+        checks.put("projectHistoryBudget", MinEditTests::projectHistoryBudget);
+        checks.put("historySparse", MinEditTests::historySparse);
+        checks.put("copyOnWrite", MinEditTests::copyOnWrite);
+
+        int failed = 0;
+        for (Map.Entry<String, Check> check : checks.entrySet()) {
+            if (filter != null && !check.getKey().contains(filter))
+                continue;
+
+            Path dir = Files.createTempDirectory("minedit-test");
+            try {
+                check.getValue().run(dir);
+                System.out.printf("ok    %s\n", check.getKey());
+            } catch (Exception | AssertionError e) {
+                failed++;
+                System.out.printf("FAIL  %s: %s\n", check.getKey(), e);
+            } finally {
+                delete(dir);
+            }
+        }
+
+        System.out.printf("%d failed\n", failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * 8 bit palette PNGs through the batch converter, streamed and decoded through the cache
+     */
+    static void batchIndexedPNG(Path dir) throws Exception {
+        Random r = new Random(1);
+        for (int i = 0; i < 20; ++i) {
+            BufferedImage image = paletteImage(16 * (1 + r.nextInt(4)), 16 * (1 + r.nextInt(4)), r);
+            Path png = dir.resolve("sheet" + i + ".png");
+            MinEditIO.savePNG(image, png.toFile());
+
+            for (boolean cached : new boolean[]{false, true}) {
+                Path out = dir.resolve(cached ? "cached" : "streamed");
+                ConversionCache cache = cached ? ConversionCache.open(dir.resolve("cache"), 1 << 20) : null;
+                try {
+                    List<MinEditBatch.Result> results = MinEditBatch.convertAll(List.of(png), out,
+                            MinEditIO.FileType.ASM, 0, 1, cache);
+                    check(results.get(0).error == null, "conversion failed: " + results.get(0).error);
+                } finally {
+                    if (cache != null) {
+                        cache.close();
+                    }
+                }
+
+                File asm = MinEditBatch.outputFor(png, out, MinEditIO.FileType.ASM).toFile();
+                checkPixels(image, MinEditIO.loadASM(asm), (cached ? "cached " : "streamed ") + png.getFileName());
+            }
+        }
+        MinEditBatch.deleteTempDirs();
+    }
+
+    /**
+     * 8 bit palette PNGs into the editor's canvas and back out, and TYPE_INT_RGB rasters with the
+     * unused top byte set through the encoders
+     */
+    static void indexedPNGRoundTrip(Path dir) throws Exception {
+        Random r = new Random(2);
+        for (int i = 0; i < 20; ++i) {
+            BufferedImage image = paletteImage(16 * (1 + r.nextInt(4)), 16 * (1 + r.nextInt(4)), r);
+            File png = dir.resolve("sheet" + i + ".png").toFile();
+            MinEditIO.savePNG(image, png);
+
+            TileCanvas doc = TileCanvas.fromImage(MinEditIO.loadPNG(png));
+            checkPixels(image, doc.toImage(), "canvas of " + png.getName());
+
+            File saved = dir.resolve("saved" + i + ".png").toFile();
+            MinEditIO.savePNG(doc.toImage(), saved);
+            checkPixels(image, MinEditIO.loadPNG(saved), "saved " + png.getName());
+
+            BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            int[] raw = ((DataBufferInt) opaque.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < image.getHeight(); ++y) {
+                for (int x = 0; x < image.getWidth(); ++x) {
+                    raw[y * image.getWidth() + x] = image.getRGB(x, y) | 0xFF000000;
+                }
+            }
+            checkPixels(image, TileCanvas.fromImage(opaque).toImage(), "opaque raster " + i);
+            byte[] encoded = new byte[MinEditIO.encodedSize(opaque)];
+            MinEditIO.convertToMinTiles(opaque, encoded, 0);
+            checkPixels(image, MinEditIO.decodeMinTiles(encoded, 0, image.getWidth(), image.getHeight(),
+                    DrawPanel.Mode.SPRITE), "encoded opaque raster " + i);
+        }
+    }
+
+    /**
+     * Sheets of every shape saved as C, from an image, a canvas, an ExportCache and streamed from
+     * a PNG, come back from loadC with the same size, mode and pixels
+     */
+    static void cRoundTrip(Path dir) throws Exception {
+        Random r = new Random(3);
+        File c = dir.resolve("sheet.c").toFile();
+        for (int i = 0; i < 200; ++i) {
+            DrawPanel.Mode mode = r.nextBoolean() ? DrawPanel.Mode.SPRITE : DrawPanel.Mode.TILE;
+            int unit = mode == DrawPanel.Mode.SPRITE ? 16 : 8;
+            BufferedImage image = randomSheet(unit * (1 + r.nextInt(8)), unit * (1 + r.nextInt(8)), mode, r);
+            String what = String.format("%dx%d %s", image.getWidth(), image.getHeight(), mode);
+
+            MinEditIO.saveC(image, c);
+            checkSheet(image, MinEditIO.loadC(c), "saveC of " + what);
+
+            TileCanvas doc = TileCanvas.fromImage(image);
+            MinEditIO.saveC(doc, c);
+            checkSheet(image, MinEditIO.loadC(c), "saveC(TileCanvas) of " + what);
+
+            ExportCache cache = new ExportCache();
+            cache.update(doc, doc.getDirty());
+            cache.saveC(c);
+            checkSheet(image, MinEditIO.loadC(c), "ExportCache.saveC of " + what);
+
+            File png = dir.resolve("sheet.png").toFile();
+            MinEditIO.savePNG(image, png);
+            check(MinEditIO.streamPNG(png, c), "not streamable: " + what);
+            checkSheet(image, MinEditIO.loadC(c), "streamPNG of " + what);
+        }
+
+        // blank sheets can't be told apart by their data at all
+        TileCanvas blank = new TileCanvas(32, 16, DrawPanel.Mode.TILE);
+        ExportCache cache = new ExportCache();
+        cache.update(blank, blank.getDirty());
+        cache.saveC(c);
+        checkSheet(blank.toImage(), MinEditIO.loadC(c), "blank 32x16 TILE");
+    }
+
+    /**
+     * Numbers that don't fit a byte are rejected instead of truncated
+     */
+    static void numberRange(Path dir) throws Exception {
+        File c = dir.resolve("data.c").toFile();
+        File asm = dir.resolve("data.asm").toFile();
+
+        Files.writeString(c.toPath(), "const char data[] = {-128, 255, -3, 0x7f, 0b1, 10h, 0x20u, 0};\n");
+        TileDataParser.Result parsed = TileDataParser.parseC(c);
+        byte[] expected = {(byte) 0x80, (byte) 0xFF, (byte) 0xFD, 0x7F, 1, 0x10, 0x20, 0};
+        check(parsed.length == expected.length, "parsed " + parsed.length + " bytes");
+        for (int i = 0; i < expected.length; ++i) {
+            check(parsed.data[i] == expected[i], String.format("byte %d is %d, expected %d", i, parsed.data[i], expected[i]));
+        }
+
+        for (String number : new String[]{"0x1FF", "256", "-129", "0xFFFF", "99999999999", "$100", "100h"}) {
+            Files.writeString(c.toPath(), "const char data[] = {0, " + number + "};\n");
+            Files.writeString(asm.toPath(), "data:\n\t.db $00," + number + "\n");
+            // $ numbers are assembly only
+            for (File f : number.startsWith("$") ? new File[]{asm} : new File[]{c, asm}) {
+                try {
+                    if (f == c) {
+                        TileDataParser.parseC(f);
+                    } else {
+                        TileDataParser.parseASM(f);
+                    }
+                    throw new AssertionError(number + " was accepted in " + f.getName());
+                } catch (IOException e) {
+                    check(e.getMessage().contains("offset"), "no offset in: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sizes in the MinEdit: comment that can't hold the data are rejected with an IOException
+     */
+    static void layoutSize(Path dir) throws Exception {
+        File c = dir.resolve("data.c").toFile();
+        String eight = "0, 1, 2, 3, 4, 5, 6, 7";
+        String[][] cases = {
+                {"0x0 TILE", ""},
+                {"4x4 TILE", ""},
+                {"-8x-8 TILE", eight},
+                {"8x-8 TILE", eight},
+                {"8x8 SPRITE", eight},
+                {"24x8 TILE", eight},
+                {"65536x65536 TILE", eight},
+                {"2147483640x2147483640 SPRITE", eight},
+        };
+        for (String[] layout : cases) {
+            Files.writeString(c.toPath(), "// " + TileDataParser.METADATA_TAG + " " + layout[0]
+                    + "\nconst char data[] = {" + layout[1] + "};\n");
+            try {
+                MinEditIO.loadC(c);
+                throw new AssertionError(layout[0] + " was accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        Files.writeString(c.toPath(), "// " + TileDataParser.METADATA_TAG + " 8x8 TILE\nconst char data[] = {" + eight + "};\n");
+        BufferedImage image = MinEditIO.loadC(c);
+        check(image.getWidth() == 8 && image.getHeight() == 8, "8x8 TILE loaded as " + image.getWidth() + "x" + image.getHeight());
+    }
+
+    /**
+     * A sheet only counts as saved once its write succeeded, and only as of the version that was written
+     */
+    static void workspaceSave(Path dir) throws Exception {
+        File png = dir.resolve("sheet.png").toFile();
+        MinEditIO.savePNG(new TileCanvas(16, 16, DrawPanel.Mode.SPRITE).toImage(), png);
+        Workspace workspace = Workspace.open(dir.toFile());
+        Workspace.Sheet sheet = workspace.getSheets().get(0);
+        workspace.put(sheet, Workspace.decode(sheet));
+        workspace.setActive(sheet);
+        TileCanvas doc = workspace.get(sheet);
+
+        BlockingQueue<Object[]> finished = new LinkedBlockingQueue<>();
+        BackgroundSaver saver = new BackgroundSaver();
+        saver.setListener(new BackgroundSaver.Listener() {
+            @Override
+            public void saveStarted(File location) {
+            }
+
+            @Override
+            public void saveFinished(File location, TileCanvas saved, long version, IOException error) {
+                if (error == null) {
+                    workspace.markSaved(saved, location, version);
+                }
+                finished.add(new Object[]{version, error});
+            }
+        });
+        saver.reset(doc);
+
+        doc.set(0, 0, TileCanvas.BLACK);
+        // a file can't be a directory, so this write fails
+        saver.save(doc, new File(png, "sheet.c"));
+        Object[] result = finished.poll(10, TimeUnit.SECONDS);
+        check(result != null && result[1] != null, "save into a file didn't fail");
+        check(workspace.getModified().contains(sheet), "sheet counts as saved after a failed write");
+
+        saver.save(doc, png);
+        long queued = doc.getVersion();
+        doc.set(1, 0, TileCanvas.BLACK);
+        result = finished.poll(10, TimeUnit.SECONDS);
+        check(result != null && result[1] == null, "save failed: " + (result == null ? "timeout" : result[1]));
+        check((long) result[0] == queued, "saved as of version " + result[0] + ", queued at " + queued);
+        check(workspace.getModified().contains(sheet), "edit made after the save was queued counts as saved");
+
+        saver.save(doc, png);
+        result = finished.poll(10, TimeUnit.SECONDS);
+        check(result != null && result[1] == null, "save failed: " + (result == null ? "timeout" : result[1]));
+        check(workspace.getModified().isEmpty(), "sheet still modified after saving it");
+
+        File c = dir.resolve("sheet.c").toFile();
+        saver.save(doc, c);
+        check(saver.flush(10000), "save not written after flush");
+        checkPixels(doc.toImage(), MinEditIO.loadC(c), "flushed save");
+
+        // another sheet saved to the same file is written whole, and so is the tracked one after it
+        TileCanvas other = new TileCanvas(16, 16, DrawPanel.Mode.SPRITE);
+        other.set(8, 8, TileCanvas.BLACK);
+        other.clearDirty();
+        saver.save(other, c);
+        check(saver.flush(10000), "save not written after flush");
+        checkPixels(other.toImage(), MinEditIO.loadC(c), "other sheet");
+        saver.save(doc, c);
+        check(saver.flush(10000), "save not written after flush");
+        checkPixels(doc.toImage(), MinEditIO.loadC(c), "tracked sheet saved after another one");
+    }
+
+    /**
+     * The cache drops least recently used entries first and keeps the rest across reopening
+     */
+    static void cacheEviction(Path dir) throws Exception {
+        List<ConversionCache.Key> keys = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            Path input = dir.resolve("input" + i + ".png");
+            Files.writeString(input, "input " + i);
+            keys.add(ConversionCache.key(input));
+        }
+
+        // 10 entries of 1000 + 16 header bytes fit
+        try (ConversionCache cache = ConversionCache.open(dir.resolve("cache"), 10 * 1016)) {
+            for (int i = 0; i < 10; ++i) {
+                cache.put(keys.get(i), new ConversionCache.Entry(8, 8, DrawPanel.Mode.TILE, new byte[1000]));
+            }
+            check(cache.getEntryCount() == 10, cache.getEntryCount() + " entries");
+            // 0 and 1 are used again, so 2 and 3 are the oldest
+            check(cache.get(keys.get(0)) != null && cache.get(keys.get(1)) != null, "entry missing");
+            cache.put(keys.get(10), new ConversionCache.Entry(8, 8, DrawPanel.Mode.TILE, new byte[1000]));
+            cache.put(keys.get(11), new ConversionCache.Entry(8, 8, DrawPanel.Mode.TILE, new byte[1000]));
+            check(cache.getTotalBytes() <= 10 * 1016, cache.getTotalBytes() + " bytes");
+        }
+
+        try (ConversionCache cache = ConversionCache.open(dir.resolve("cache"), 10 * 1016)) {
+            check(cache.getEntryCount() == 10, cache.getEntryCount() + " entries after reopening");
+            for (int i = 0; i < 12; ++i) {
+                boolean evicted = i == 2 || i == 3;
+                check((cache.get(keys.get(i)) == null) == evicted, "entry " + i + (evicted ? " kept" : " evicted"));
+            }
+        }
+    }
+
+    /**
+     * streamPNG writes exactly what saveC/saveASM write for loadPNG's image, for sheets of every
+     * PNG color type ImageIO writes
+     */
+    static void streamPNG(Path dir) throws Exception {
+        Random r = new Random(4);
+        File png = dir.resolve("sheet.png").toFile();
+        int streamed = 0;
+        for (int i = 0; i < 600; ++i) {
+            BufferedImage image = anyPNGImage(16 * (1 + r.nextInt(6)), 16 * (1 + r.nextInt(6)), i % PNG_TYPES, r);
+            MinEditIO.savePNG(image, png);
+            String what = String.format("%dx%d type %d", image.getWidth(), image.getHeight(), image.getType());
+
+            for (String ext : new String[]{".c", ".asm"}) {
+                File expected = dir.resolve("expected" + ext).toFile();
+                File actual = dir.resolve("actual" + ext).toFile();
+                // saveC and saveASM pick the format by method, the names only have to match
+                if (ext.equals(".c")) {
+                    MinEditIO.saveC(MinEditIO.loadPNG(png), expected);
+                } else {
+                    MinEditIO.saveASM(MinEditIO.loadPNG(png), expected);
+                }
+                if (!MinEditIO.streamPNG(png, actual))
+                    continue;
+                streamed++;
+                String name = MinEditIO.dataName(expected);
+                String want = Files.readString(expected.toPath()).replace(name, "sheet");
+                String got = Files.readString(actual.toPath()).replace(MinEditIO.dataName(actual), "sheet");
+                check(want.equals(got), what + ": streamed " + ext + " differs");
+            }
+        }
+        // 16 bit gray is the only type here that can't be streamed
+        check(streamed >= 600 * 2 * (PNG_TYPES - 1) / PNG_TYPES, "only " + streamed + " files streamed");
+    }
+
+    private static final int PNG_TYPES = 9;
+
+    /**
+     * Random sheet in one of PNG_TYPES image types: 1, 2, 4 and 8 bit palette, 8 bit gray, RGB,
+     * ARGB with partly transparent pixels, 1 bit gray and 16 bit gray
+     */
+    static BufferedImage anyPNGImage(int width, int height, int type, Random r) {
+        int[] colors = {MinEditIO.RGB_BLACK, MinEditIO.RGB_WHITE, MinEditIO.RGB_TRANS, 0x990099, 0x808080,
+                0x010101, 0x800081, 0xFEFEFE};
+        BufferedImage image = switch (type) {
+            case 0, 1, 2 -> {
+                int bits = 1 << type;
+                int n = Math.min(colors.length, 1 << bits);
+                byte[] red = new byte[n];
+                byte[] green = new byte[n];
+                byte[] blue = new byte[n];
+                for (int i = 0; i < n; ++i) {
+                    // a two color palette that isn't black and white
+                    int c = n == 2 ? colors[i + 1] : colors[i];
+                    red[i] = (byte) (c >> 16);
+                    green[i] = (byte) (c >> 8);
+                    blue[i] = (byte) c;
+                }
+                yield new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY,
+                        new IndexColorModel(bits, n, red, green, blue));
+            }
+            case 3 -> paletteImage(width, height, r);
+            case 4 -> new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            case 5 -> new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            case 6 -> new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            case 7 -> new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            default -> new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        };
+        if (type == 3)
+            return image;
+
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int alpha = type == 6 && r.nextInt(4) == 0 ? r.nextInt(256) : 0xFF;
+                image.setRGB(x, y, alpha << 24 | colors[r.nextInt(colors.length)]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * A project comes back with its canvas, settings and history, and corrupt settings are rejected
+     */
+    static void projectFile(Path dir) throws Exception {
+        Random r = new Random(5);
+        TileCanvas doc = new TileCanvas(128, 64, DrawPanel.Mode.SPRITE);
+        EditHistory history = randomEdits(doc, 30, 1 << 30, r);
+        for (int i = 0; i < 5; ++i) {
+            history.undo(doc);
+        }
+
+        File file = dir.resolve("sheet.minproj").toFile();
+        new ProjectFile(doc.copy(), history.snapshot(), MinEdit.Tool.FILL, 3, 4.0f).save(file);
+        ProjectFile project = ProjectFile.open(file);
+        check(project.getTool() == MinEdit.Tool.FILL && project.getBrushSize() == 3 && project.getScale() == 4.0f,
+                "settings not restored");
+        TileCanvas opened = project.getDocument();
+        checkPixels(doc.toImage(), opened.toImage(), "opened canvas");
+
+        EditHistory read = project.getHistory(1 << 30);
+        check(read.getUndoCount() == history.getUndoCount() && read.getRedoCount() == history.getRedoCount(),
+                String.format("%d undo and %d redo steps", read.getUndoCount(), read.getRedoCount()));
+        while (history.getUndoCount() > 0) {
+            history.undo(doc);
+            read.undo(opened);
+        }
+        checkPixels(doc.toImage(), opened.toImage(), "fully undone canvas");
+
+        byte[] saved = Files.readAllBytes(file.toPath());
+        File corrupt = dir.resolve("corrupt.minproj").toFile();
+        for (int brush : new int[]{0, -1, DrawPanel.MAX_BRUSH_SIZE + 1}) {
+            ByteBuffer buf = ByteBuffer.wrap(saved.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putShort(22, (short) brush);
+            Files.write(corrupt.toPath(), buf.array());
+            checkRejected(corrupt, "brush size " + brush);
+        }
+        for (float scale : new float[]{Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, -1, 0,
+                DrawPanel.MAX_SCALE * 2}) {
+            ByteBuffer buf = ByteBuffer.wrap(saved.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putFloat(24, scale);
+            Files.write(corrupt.toPath(), buf.array());
+            checkRejected(corrupt, "scale " + scale);
+        }
+    }
+
+    /**
+     * Reading a history keeps to the budget, and a corrupt step count or size fails at the end of
+     * the data instead of allocating what it claims
+     */
+    static void projectHistoryBudget(Path dir) throws Exception {
+        Random r = new Random(6);
+        TileCanvas doc = new TileCanvas(128, 128, DrawPanel.Mode.TILE);
+        EditHistory history = randomEdits(doc, 40, 1 << 30, r);
+        for (int i = 0; i < 10; ++i) {
+            history.undo(doc);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        history.snapshot().write(new DataOutputStream(bytes));
+
+        long budget = history.getMemoryUsage() / 4;
+        TileCanvas copy = doc.copy();
+        EditHistory read = EditHistory.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), copy, budget);
+        check(read.getMemoryUsage() <= budget, read.getMemoryUsage() + " bytes over a budget of " + budget);
+        check(read.getUndoCount() > 0 && read.getUndoCount() < history.getUndoCount(), read.getUndoCount() + " undo steps");
+        // the kept steps are the newest ones
+        for (int i = 0; i < read.getUndoCount(); ++i) {
+            history.undo(doc);
+            read.undo(copy);
+        }
+        checkPixels(doc.toImage(), copy.toImage(), "canvas undone within the budget");
+
+        // the newest undo step is kept even if it alone is over the budget
+        read = EditHistory.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), doc.copy(), 0);
+        check(read.getUndoCount() == 1 && read.getRedoCount() == 0,
+                String.format("%d undo and %d redo steps with no budget", read.getUndoCount(), read.getRedoCount()));
+
+        TileCanvas huge = new TileCanvas(16384, 16384, DrawPanel.Mode.SPRITE);
+        ByteArrayOutputStream lying = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(lying);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(huge.getTileCount());
+        out.writeInt(0);
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        try {
+            EditHistory.read(new DataInputStream(new ByteArrayInputStream(lying.toByteArray())), huge, 1 << 30);
+            throw new AssertionError("truncated history was accepted");
+        } catch (EOFException e) {
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+            check(allocated < 1 << 20, allocated + " bytes allocated for a truncated history");
+        }
+    }
+
+    /**
+     * Recording edits of a huge canvas allocates and counts what they touch, not the canvas size,
+     * and repeated touches of a tile still only save it once
+     */
+    static void historySparse(Path dir) throws Exception {
+        Random r = new Random(7);
+        TileCanvas huge = new TileCanvas(16384, 16384, DrawPanel.Mode.SPRITE);
+        EditHistory history = new EditHistory(1 << 30);
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        history.begin(huge);
+        for (int i = 0; i < 1000; ++i) {
+            history.touch(r.nextInt(huge.getTileCount()));
+        }
+        // the saved planes and tile numbers at least, the new values only come with end()
+        check(history.getMemoryUsage() >= 20 * 1000, history.getMemoryUsage() + " bytes counted for an open edit");
+        history.end();
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        check(allocated < 1 << 20, allocated + " bytes allocated recording 1000 tiles");
+
+        TileCanvas doc = new TileCanvas(256, 256, DrawPanel.Mode.SPRITE);
+        TileCanvas start = doc.copy();
+        history = randomEdits(doc, 50, 1 << 30, r);
+        TileCanvas done = doc.copy();
+        for (int i = history.getUndoCount(); i > 0; --i) {
+            history.undo(doc);
+        }
+        checkPixels(start.toImage(), doc.toImage(), "canvas undone");
+        for (int i = history.getRedoCount(); i > 0; --i) {
+            history.redo(doc);
+        }
+        checkPixels(done.toImage(), doc.toImage(), "canvas redone");
+
+        // touching the same tiles over and over saves each of them once
+        history = new EditHistory(1 << 30);
+        history.begin(doc);
+        for (int i = 0; i < 10000; ++i) {
+            int t = r.nextInt(16);
+            history.touch(t);
+            doc.set(t % doc.getTilesX() * 8, t / doc.getTilesX() * 8, TileCanvas.BLACK);
+            doc.set(t % doc.getTilesX() * 8 + 1, t / doc.getTilesX() * 8, TileCanvas.WHITE);
+        }
+        history.end();
+        long bytes = history.getMemoryUsage();
+        check(bytes <= EditHistory.TileEdit.bytes(16), bytes + " bytes for an edit of 16 tiles");
+    }
+
+    /**
+     * Copies share their chunks until either side writes: neither sees the other's writes, fills,
+     * inverts or copyFrom, and copying a painted canvas doesn't copy the chunks
+     */
+    static void copyOnWrite(Path dir) throws Exception {
+        Random r = new Random(8);
+        for (DrawPanel.Mode mode : DrawPanel.Mode.values()) {
+            TileCanvas doc = TileCanvas.fromImage(randomSheet(256, 192, mode, r));
+            BufferedImage expected = doc.toImage();
+            TileCanvas copy = doc.copy();
+            for (int i = 0; i < 2000; ++i) {
+                doc.set(r.nextInt(doc.getWidth()), r.nextInt(doc.getHeight()), r.nextInt(3));
+            }
+            checkPixels(expected, copy.toImage(), mode + " copy after writes to the original");
+
+            BufferedImage edited = doc.toImage();
+            copy.floodFill(0, 0, TileCanvas.BLACK, t -> {
+            });
+            copy.invert();
+            checkPixels(edited, doc.toImage(), mode + " original after writes to the copy");
+
+            // clearing and undoing it, as DrawPanel does
+            TileCanvas before = doc.copy();
+            doc.fill(TileCanvas.WHITE);
+            doc.copyFrom(before);
+            doc.set(5, 5, TileCanvas.BLACK);
+            doc.invert();
+            checkPixels(edited, before.toImage(), mode + " canvas kept for undo");
+            doc.copyFrom(before);
+            checkPixels(edited, doc.toImage(), mode + " canvas undone twice");
+        }
+
+        TileCanvas huge = TileCanvas.fromImage(randomSheet(2048, 2048, DrawPanel.Mode.SPRITE, r));
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        TileCanvas snapshot = huge.copy();
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        check(allocated < huge.bytes() / 16, allocated + " bytes allocated copying " + huge.bytes() + " bytes of chunks");
+        int pixel = huge.get(0, 0) == TileCanvas.BLACK ? TileCanvas.WHITE : TileCanvas.BLACK;
+        huge.set(0, 0, pixel);
+        check(snapshot.get(0, 0) != pixel, "snapshot changed with the canvas");
+    }
+
+    /**
+     * count edits of random tiles, pushed to a new history
+     */
+    static EditHistory randomEdits(TileCanvas doc, int count, long budget, Random r) {
+        EditHistory history = new EditHistory(budget);
+        int[] values = doc.getMode() == DrawPanel.Mode.SPRITE
+                ? new int[]{TileCanvas.BLACK, TileCanvas.WHITE, TileCanvas.TRANS}
+                : new int[]{TileCanvas.BLACK, TileCanvas.WHITE};
+        for (int e = 0; e < count; ++e) {
+            history.begin(doc);
+            for (int i = 0, n = 1 + r.nextInt(40); i < n; ++i) {
+                int x = r.nextInt(doc.getWidth());
+                int y = r.nextInt(doc.getHeight());
+                history.touch(y / 8 * doc.getTilesX() + x / 8);
+                doc.set(x, y, values[r.nextInt(values.length)]);
+            }
+            history.end();
+        }
+        return history;
+    }
+
+    static void checkRejected(File project, String what) {
+        try {
+            ProjectFile.open(project);
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError(what + " was accepted");
+    }
+
+    /**
+     * Same size and type as expected, so the layout was restored, and the same pixels
+     */
+    static void checkSheet(BufferedImage expected, BufferedImage actual, String what) {
+        check(actual.getType() == expected.getType(), what + ": came back as type " + actual.getType());
+        checkPixels(expected, actual, what);
+    }
+
+    /**
+     * Random TILE (TYPE_BYTE_BINARY) or SPRITE (TYPE_INT_RGB) sheet
+     */
+    static BufferedImage randomSheet(int width, int height, DrawPanel.Mode mode, Random r) {
+        BufferedImage image;
+        int[] colors;
+        if (mode == DrawPanel.Mode.SPRITE) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            colors = new int[]{MinEditIO.RGB_BLACK, MinEditIO.RGB_WHITE, MinEditIO.RGB_TRANS};
+        } else {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            colors = new int[]{MinEditIO.RGB_BLACK, MinEditIO.RGB_WHITE};
+        }
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.setRGB(x, y, colors[r.nextInt(colors.length)]);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * 8 bit indexed image with black, white, RGB_TRANS and colors that count as white
+     */
+    static BufferedImage paletteImage(int width, int height, Random r) {
+        int[] colors = {MinEditIO.RGB_BLACK, MinEditIO.RGB_WHITE, MinEditIO.RGB_TRANS, 0x990099, 0x808080};
+        byte[] red = new byte[colors.length];
+        byte[] green = new byte[colors.length];
+        byte[] blue = new byte[colors.length];
+        for (int i = 0; i < colors.length; ++i) {
+            red[i] = (byte) (colors[i] >> 16);
+            green[i] = (byte) (colors[i] >> 8);
+            blue[i] = (byte) colors[i];
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, colors.length, red, green, blue));
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.getRaster().setSample(x, y, 0, r.nextInt(colors.length));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Every pixel of actual is the TileCanvas value of the same pixel in expected
+     */
+    static void checkPixels(BufferedImage expected, BufferedImage actual, String what) {
+        check(actual.getWidth() == expected.getWidth() && actual.getHeight() == expected.getHeight(),
+                String.format("%s: size %dx%d, expected %dx%d", what, actual.getWidth(), actual.getHeight(),
+                        expected.getWidth(), expected.getHeight()));
+        for (int y = 0; y < expected.getHeight(); ++y) {
+            for (int x = 0; x < expected.getWidth(); ++x) {
+                int want = TileCanvas.fromRGB(expected.getRGB(x, y));
+                int got = TileCanvas.fromRGB(actual.getRGB(x, y));
+                check(want == got, String.format("%s: pixel %d,%d is %d, expected %d", what, x, y, got, want));
+            }
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}